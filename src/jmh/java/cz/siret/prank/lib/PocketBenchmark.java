@@ -0,0 +1,54 @@
+package cz.siret.prank.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of pocket predictions from memory, the number of pockets grows with the size
+ * of the protein.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PocketBenchmark {
+    @Param({"300", "3000", "30000"})
+    public int residues;
+
+    private byte[] predictions;
+
+    @Setup
+    public void setUp() throws IOException {
+        File dir = SyntheticData.tempDir();
+        try {
+            File file = new File(dir, "predictions.csv");
+            SyntheticData.writePredictions(file, Math.max(5, residues / 30), residues, 42);
+            predictions = Files.readAllBytes(file.toPath());
+        } finally {
+            SyntheticData.deleteDir(dir);
+        }
+    }
+
+    @Benchmark
+    public List<Pocket> parseCSVPrediction() {
+        return Pocket.parseCSVPrediction(new ByteArrayInputStream(predictions));
+    }
+}
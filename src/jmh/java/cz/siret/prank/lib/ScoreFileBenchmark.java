@@ -0,0 +1,61 @@
+package cz.siret.prank.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of conservation score files of one chain in both formats. parse always reads
+ * the file, load goes through the {@link ScoreFileCache} the way ConservationScore does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoreFileBenchmark {
+    @Param({"300", "3000", "30000"})
+    public int length;
+
+    @Param({"JSDFormat", "ConCavityFormat"})
+    public ConservationScore.ScoreFormat format;
+
+    private File dir;
+    private File scoreFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = SyntheticData.tempDir();
+        scoreFile = new File(dir, "scores.txt");
+        SyntheticData.writeScoreFile(scoreFile, length, format, 42);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticData.deleteDir(dir);
+    }
+
+    @Benchmark
+    public ChainScores parse() throws IOException {
+        return ConservationScore.parseScoreFile(scoreFile, format);
+    }
+
+    @Benchmark
+    public ChainScores load() throws IOException {
+        return ConservationScore.loadScoreFile(scoreFile, format);
+    }
+}
@@ -0,0 +1,130 @@
+package cz.siret.prank.lib;
+
+import org.biojava.nbio.structure.AminoAcidImpl;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.ResidueNumber;
+import org.biojava.nbio.structure.io.mmcif.model.ChemComp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cz.siret.prank.lib.utils.BitParallelLcs;
+import cz.siret.prank.lib.utils.ResidueEncoding;
+
+/**
+ * Sequence matching on synthetic chains. Run with the gc profiler (gradle jmh does that)
+ * and compare gc.alloc.rate.norm: lcsMatrix allocates only the matrix itself, while
+ * lcsMatrixStrings, which compares one letter codes the way the matching used to,
+ * allocates temporary Strings for every cell.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SequenceMatchingBenchmark {
+    private static final String AMINO_ACIDS = "ARNDCQEGHILKMFPSTWYV";
+
+    @Param({"300", "3000"})
+    public int length;
+
+    private List<Group> chain;
+    private String[] scoreLetters;
+    private ChainScores scores;
+    private byte[] encodedChain;
+    private byte[] encodedScores;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        chain = new ArrayList<>(length);
+        scoreLetters = new String[length];
+        int[] indices = new int[length];
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            String letter = String.valueOf(AMINO_ACIDS.charAt(random.nextInt(20)));
+            chain.add(createGroup(letter, i + 1));
+            // Every 50th residue is mutated, so that the chains do not match exactly.
+            String scoreLetter = i % 50 == 0
+                    ? String.valueOf(AMINO_ACIDS.charAt(random.nextInt(20))) : letter;
+            scoreLetters[i] = scoreLetter.toLowerCase();
+            indices[i] = i;
+            values[i] = random.nextDouble();
+        }
+        encodedChain = ResidueEncoding.encodeGroups(chain);
+        encodedScores = encodeScores(scoreLetters);
+        scores = new ChainScores(indices, values, encodedScores);
+    }
+
+    private static byte[] encodeScores(String[] letters) {
+        byte[] result = new byte[letters.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ResidueEncoding.encode(letters[i], ResidueEncoding.UNKNOWN_SCORE_RESIDUE);
+        }
+        return result;
+    }
+
+    private static Group createGroup(String oneLetterCode, int seqNum) {
+        ChemComp chemComp = new ChemComp();
+        chemComp.setOne_letter_code(oneLetterCode);
+        AminoAcidImpl group = new AminoAcidImpl();
+        group.setChemComp(chemComp);
+        group.setResidueNumber(new ResidueNumber("A", seqNum, null));
+        return group;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        ResidueEncoding.encodeGroups(chain);
+        return encodeScores(scoreLetters);
+    }
+
+    @Benchmark
+    public int[][] lcsMatrix() {
+        return ConservationScore.calcLongestCommonSubSequence(encodedChain, encodedScores);
+    }
+
+    @Benchmark
+    public int[][] lcsMatrixStrings() {
+        int[][] lcs = new int[chain.size() + 1][scoreLetters.length + 1];
+        for (int i = 1; i <= chain.size(); i++) {
+            for (int j = 1; j <= scoreLetters.length; j++) {
+                if (chain.get(i - 1).getChemComp().getOne_letter_code().toUpperCase().equals(
+                        scoreLetters[j - 1].toUpperCase())) {
+                    lcs[i][j] = lcs[i - 1][j - 1] + 1;
+                } else {
+                    lcs[i][j] = Math.max(lcs[i - 1][j], lcs[i][j - 1]);
+                }
+            }
+        }
+        return lcs;
+    }
+
+    @Benchmark
+    public int lcsLength() {
+        return BitParallelLcs.length(encodedChain, encodedScores);
+    }
+
+    @Benchmark
+    public Map<ResidueNumberWrapper, Double> matchSequences() {
+        Map<ResidueNumberWrapper, Double> result = new HashMap<>();
+        ConservationScore.matchSequences(chain, scores, result);
+        return result;
+    }
+}
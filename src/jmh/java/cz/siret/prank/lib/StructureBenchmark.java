@@ -0,0 +1,98 @@
+package cz.siret.prank.lib;
+
+import org.biojava.nbio.structure.ResidueNumber;
+import org.biojava.nbio.structure.Structure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.StructureCache;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Loading of a synthetic PDB file (backbone atoms, chains of 1000 residues), building
+ * its {@link Sequence} with conservation scores and gzipping the file. loadPdbFile clears
+ * the {@link StructureCache} first, so it measures the parsing, loadPdbFileCached the hits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructureBenchmark {
+    @Param({"300", "3000", "30000"})
+    public int residues;
+
+    private File dir;
+    private File pdbFile;
+    private Structure structure;
+    private ConservationScore score;
+    private Set<ResidueNumberWrapper> bindingSites;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = SyntheticData.tempDir();
+        pdbFile = new File(dir, "synthetic.pdb");
+        SyntheticData.writePdb(pdbFile, residues, 42);
+        structure = BioUtils.INSTANCE.loadPdbFile(pdbFile);
+
+        Random random = new Random(42);
+        ResidueScoreTable.Builder scores = ResidueScoreTable.builder();
+        bindingSites = new HashSet<>();
+        for (int i = 0; i < residues; i++) {
+            String chainId = String.valueOf(SyntheticData.chainId(i));
+            int seqNum = SyntheticData.residueNumber(i);
+            scores.put(chainId, seqNum, ' ', random.nextDouble());
+            if (i % 20 == 0) {
+                bindingSites.add(new ResidueNumberWrapper(
+                        new ResidueNumber(chainId, seqNum, null)));
+            }
+        }
+        score = ConservationScore.fromTable(scores.build());
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticData.deleteDir(dir);
+    }
+
+    @Benchmark
+    public Structure loadPdbFile() throws IOException {
+        StructureCache.INSTANCE.clear();
+        return BioUtils.INSTANCE.loadPdbFile(pdbFile);
+    }
+
+    @Benchmark
+    public Structure loadPdbFileCached() throws IOException {
+        return BioUtils.INSTANCE.loadPdbFile(pdbFile);
+    }
+
+    @Benchmark
+    public Sequence fromStructure() {
+        return Sequence.fromStructure(structure, score, bindingSites);
+    }
+
+    @Benchmark
+    public long gzipFile() throws IOException {
+        Utils.INSTANCE.gzipFile(pdbFile);
+        return new File(dir, pdbFile.getName() + ".gz").length();
+    }
+}
@@ -0,0 +1,138 @@
+package cz.siret.prank.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes synthetic inputs for the benchmarks: PDB files, conservation score files and
+ * pocket predictions of a given size. The content is random but fixed by the seed, so
+ * runs are comparable.
+ */
+final class SyntheticData {
+    static final String AMINO_ACIDS = "ARNDCQEGHILKMFPSTWYV";
+    private static final String[] RESIDUE_NAMES = {"ALA", "ARG", "ASN", "ASP", "CYS", "GLN",
+            "GLU", "GLY", "HIS", "ILE", "LEU", "LYS", "MET", "PHE", "PRO", "SER", "THR", "TRP",
+            "TYR", "VAL"};
+    private static final String[] BACKBONE = {"N", "CA", "C", "O"};
+    private static final String CHAIN_IDS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopqrstuvwxyz";
+    /** Residues per chain, larger structures are split into more chains. */
+    static final int CHAIN_LENGTH = 1000;
+
+    static File tempDir() throws IOException {
+        File dir = File.createTempFile("prank-jmh", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        for (File f : files != null ? files : new File[0]) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    static char chainId(int residue) {
+        return CHAIN_IDS.charAt(residue / CHAIN_LENGTH);
+    }
+
+    static int residueNumber(int residue) {
+        return residue % CHAIN_LENGTH + 1;
+    }
+
+    /**
+     * Writes a structure with backbone atoms of the given number of residues.
+     */
+    static void writePdb(File file, int residues, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.US_ASCII.name())) {
+            out.println("HEADER    SYNTHETIC PROTEIN                       01-JAN-00   1SYN");
+            int serial = 1;
+            double x = 0, y = 0, z = 0;
+            for (int i = 0; i < residues; i++) {
+                String name = RESIDUE_NAMES[random.nextInt(RESIDUE_NAMES.length)];
+                for (String atom : BACKBONE) {
+                    x += random.nextDouble() * 2 - 1;
+                    y += random.nextDouble() * 2 - 1;
+                    z += random.nextDouble() * 2 - 1;
+                    out.println(String.format(Locale.ROOT,
+                            "ATOM  %5d  %-3s %3s %c%4d    %8.3f%8.3f%8.3f  1.00 20.00" +
+                                    "           %c",
+                            serial++ % 100000, atom, name, chainId(i), residueNumber(i),
+                            x, y, z, atom.charAt(0)));
+                }
+                if (i == residues - 1 || residueNumber(i) == CHAIN_LENGTH) {
+                    out.println("TER");
+                }
+            }
+            out.println("END");
+        }
+    }
+
+    /**
+     * Writes scores of one chain in the JSD (index, score, column) or ConCavity
+     * (index, letter, score) format.
+     */
+    static void writeScoreFile(File file, int residues, ConservationScore.ScoreFormat format,
+                               long seed) throws IOException {
+        Random random = new Random(seed);
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.US_ASCII.name())) {
+            for (int i = 0; i < residues; i++) {
+                char letter = AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length()));
+                double score = random.nextDouble();
+                if (format == ConservationScore.ScoreFormat.JSDFormat) {
+                    out.print(String.format(Locale.ROOT, "%d\t%.5f\t%c", i, score, letter));
+                    // The alignment column follows the query residue.
+                    for (int k = 0; k < 20; k++) {
+                        out.print(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+                    }
+                    out.println();
+                } else {
+                    out.println(String.format(Locale.ROOT, "%d\t%c\t%.5f", i, letter, score));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a P2Rank prediction CSV with the given number of pockets.
+     */
+    static void writePredictions(File file, int pockets, int residues, long seed)
+            throws IOException {
+        Random random = new Random(seed);
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.US_ASCII.name())) {
+            out.println("name,rank,score,connolly_points,surf_atoms,center_x,center_y," +
+                    "center_z,residue_ids,surf_atom_ids");
+            for (int p = 0; p < pockets; p++) {
+                StringBuilder residueIds = new StringBuilder();
+                StringBuilder atomIds = new StringBuilder();
+                int size = 5 + random.nextInt(30);
+                int first = random.nextInt(Math.max(1, residues - size));
+                for (int k = 0; k < size; k++) {
+                    int residue = Math.min(residues - 1, first + k);
+                    if (k > 0) {
+                        residueIds.append(' ');
+                        atomIds.append(' ');
+                    }
+                    residueIds.append(chainId(residue)).append('_').append(residueNumber(residue));
+                    atomIds.append(residue * 4 + 1);
+                }
+                out.println(String.format(Locale.ROOT,
+                        "pocket%d,%d,%.2f,%d,%d,%.4f,%.4f,%.4f,%s,%s", p + 1, p + 1,
+                        random.nextDouble() * 20, random.nextInt(200), size * 2,
+                        random.nextDouble() * 50, random.nextDouble() * 50,
+                        random.nextDouble() * 50, residueIds, atomIds));
+            }
+        }
+    }
+
+    // static utility class
+    private SyntheticData() {}
+}
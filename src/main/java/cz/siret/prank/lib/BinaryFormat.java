@@ -0,0 +1,592 @@
+package cz.siret.prank.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Versioned columnar binary format for {@link Sequence}, lists of {@link Pocket}s and
+ * {@link ConservationScore}, replacing Java serialization in caches.
+ *
+ * A file is a 16 byte header (magic, version, kind, flags, column count, payload length)
+ * followed by the payload, which is optionally deflate-compressed. The payload is a list of
+ * named columns, each one a primitive array (int, float, double, long) or a string column
+ * (a table of the distinct strings and a code per value), little-endian and 8-byte
+ * aligned. Variable length values (residue ids of pockets) are flattened into a column
+ * with an offsets column next to it.
+ *
+ * {@link #columns(ByteBuffer)} gives zero-copy typed views of the columns of an
+ * uncompressed buffer, e.g. of a memory-mapped cache file (see {@link #map(File)}); the
+ * read methods materialize the objects by bulk copies from these views. Compressed
+ * payloads are inflated to the heap first.
+ */
+public final class BinaryFormat {
+    private static final int MAGIC = 0x424b5250; // "PRKB" in little-endian
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int FLAG_COMPRESSED = 1;
+
+    public static final byte KIND_SEQUENCE = 1;
+    public static final byte KIND_POCKETS = 2;
+    public static final byte KIND_CONSERVATION = 3;
+
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_FLOAT = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_STRING = 5;
+
+    /**
+     * Zero-copy access to the columns of a buffer.
+     */
+    public static class Columns {
+        private final byte kind;
+        private final ByteBuffer payload;
+        private final Map<String, Integer> offsets = new LinkedHashMap<>();
+        private final Map<String, Byte> types = new HashMap<>();
+        private final Map<String, Integer> counts = new HashMap<>();
+
+        private Columns(byte kind, ByteBuffer payload, int columnCount) throws IOException {
+            this.kind = kind;
+            this.payload = payload;
+            int pos = 0;
+            for (int c = 0; c < columnCount; c++) {
+                int nameLength = payload.getInt(pos);
+                byte[] name = new byte[nameLength];
+                for (int i = 0; i < nameLength; i++) {
+                    name[i] = payload.get(pos + 4 + i);
+                }
+                pos = align(pos + 4 + nameLength);
+                byte type = payload.get(pos);
+                int count = payload.getInt(pos + 4);
+                int dataLength = payload.getInt(pos + 8);
+                String columnName = new String(name, StandardCharsets.UTF_8);
+                offsets.put(columnName, pos + 16);
+                types.put(columnName, type);
+                counts.put(columnName, count);
+                pos = align(pos + 16 + dataLength);
+            }
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        public boolean has(String name) {
+            return offsets.containsKey(name);
+        }
+
+        private ByteBuffer slice(String name, byte type, int bytes) throws IOException {
+            Integer offset = offsets.get(name);
+            if (offset == null || types.get(name) != type) {
+                throw new IOException("Missing column " + name);
+            }
+            ByteBuffer b = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            b.position(offset);
+            b.limit(offset + bytes);
+            return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private int count(String name) throws IOException {
+            Integer count = counts.get(name);
+            if (count == null) throw new IOException("Missing column " + name);
+            return count;
+        }
+
+        public IntBuffer getInts(String name) throws IOException {
+            return slice(name, TYPE_INT, count(name) * 4).asIntBuffer();
+        }
+
+        public FloatBuffer getFloats(String name) throws IOException {
+            return slice(name, TYPE_FLOAT, count(name) * 4).asFloatBuffer();
+        }
+
+        public DoubleBuffer getDoubles(String name) throws IOException {
+            return slice(name, TYPE_DOUBLE, count(name) * 8).asDoubleBuffer();
+        }
+
+        public LongBuffer getLongs(String name) throws IOException {
+            return slice(name, TYPE_LONG, count(name) * 8).asLongBuffer();
+        }
+
+        public StringColumn getStrings(String name) throws IOException {
+            Integer offset = offsets.get(name);
+            if (offset == null || types.get(name) != TYPE_STRING) {
+                throw new IOException("Missing column " + name);
+            }
+            return new StringColumn(payload, offset, count(name));
+        }
+    }
+
+    /**
+     * String column, the strings of the table are decoded once on first access.
+     */
+    public static class StringColumn {
+        private final ByteBuffer payload;
+        private final int tableSize;
+        private final int codeWidth;
+        private final int offsetsPos;
+        private final int bytesPos;
+        private final int codesPos;
+        private final int size;
+        private final String[] table;
+
+        private StringColumn(ByteBuffer payload, int pos, int size) {
+            this.payload = payload;
+            this.size = size;
+            this.tableSize = payload.getInt(pos);
+            this.codeWidth = payload.getInt(pos + 4);
+            this.offsetsPos = pos + 8;
+            this.bytesPos = offsetsPos + (tableSize + 1) * 4;
+            this.codesPos = align(bytesPos + payload.getInt(offsetsPos + tableSize * 4));
+            this.table = new String[tableSize];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return code of the value, 0 for null, otherwise 1 + index to the string table
+         */
+        public int getCode(int index) {
+            int pos = codesPos + index * codeWidth;
+            switch (codeWidth) {
+                case 1:
+                    return payload.get(pos) & 0xFF;
+                case 2:
+                    return payload.getShort(pos) & 0xFFFF;
+                default:
+                    return payload.getInt(pos);
+            }
+        }
+
+        public String get(int index) {
+            int code = getCode(index);
+            if (code == 0) return null;
+            String s = table[code - 1];
+            if (s == null) {
+                int start = payload.getInt(offsetsPos + (code - 1) * 4);
+                int end = payload.getInt(offsetsPos + code * 4);
+                byte[] bytes = new byte[end - start];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = payload.get(bytesPos + start + i);
+                }
+                s = new String(bytes, StandardCharsets.UTF_8);
+                table[code - 1] = s;
+            }
+            return s;
+        }
+
+        public String[] toArray() {
+            String[] result = new String[size];
+            for (int i = 0; i < size; i++) {
+                result[i] = get(i);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Growable little-endian buffer the columns are written to.
+     */
+    private static class ColumnWriter {
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+        private int columns = 0;
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+                ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+
+        private void pad() {
+            int padding = align(buffer.position()) - buffer.position();
+            ensure(padding);
+            for (int i = 0; i < padding; i++) buffer.put((byte) 0);
+        }
+
+        /**
+         * Writes the column header, the data (dataLength bytes) has to follow.
+         */
+        private void column(String name, byte type, int count, int dataLength) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            ensure(nameBytes.length + 32 + dataLength);
+            buffer.putInt(nameBytes.length).put(nameBytes);
+            pad();
+            buffer.put(type).put(new byte[3]).putInt(count).putInt(dataLength).putInt(0);
+            columns++;
+        }
+
+        void ints(String name, int[] values) {
+            column(name, TYPE_INT, values.length, values.length * 4);
+            buffer.asIntBuffer().put(values);
+            buffer.position(buffer.position() + values.length * 4);
+            pad();
+        }
+
+        void floats(String name, float[] values) {
+            column(name, TYPE_FLOAT, values.length, values.length * 4);
+            buffer.asFloatBuffer().put(values);
+            buffer.position(buffer.position() + values.length * 4);
+            pad();
+        }
+
+        void doubles(String name, double[] values) {
+            column(name, TYPE_DOUBLE, values.length, values.length * 8);
+            buffer.asDoubleBuffer().put(values);
+            buffer.position(buffer.position() + values.length * 8);
+            pad();
+        }
+
+        void longs(String name, long[] values) {
+            column(name, TYPE_LONG, values.length, values.length * 8);
+            buffer.asLongBuffer().put(values);
+            buffer.position(buffer.position() + values.length * 8);
+            pad();
+        }
+
+        void strings(String name, String[] values) {
+            Map<String, Integer> codes = new LinkedHashMap<>();
+            int[] valueCodes = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) continue;
+                Integer code = codes.get(values[i]);
+                if (code == null) {
+                    code = codes.size() + 1;
+                    codes.put(values[i], code);
+                }
+                valueCodes[i] = code;
+            }
+            List<byte[]> table = new ArrayList<>(codes.size());
+            int tableBytes = 0;
+            for (String s : codes.keySet()) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                table.add(bytes);
+                tableBytes += bytes.length;
+            }
+            int codeWidth = codes.size() < 0xFF ? 1 : codes.size() < 0xFFFF ? 2 : 4;
+            int dataLength = align(8 + (table.size() + 1) * 4 + tableBytes)
+                    + values.length * codeWidth;
+            column(name, TYPE_STRING, values.length, dataLength);
+            int start = buffer.position();
+            buffer.putInt(table.size()).putInt(codeWidth);
+            int offset = 0;
+            for (byte[] bytes : table) {
+                buffer.putInt(offset);
+                offset += bytes.length;
+            }
+            buffer.putInt(offset);
+            for (byte[] bytes : table) {
+                buffer.put(bytes);
+            }
+            // Codes are aligned relative to the payload, the same way the reader does it.
+            pad();
+            for (int code : valueCodes) {
+                if (codeWidth == 1) {
+                    buffer.put((byte) code);
+                } else if (codeWidth == 2) {
+                    buffer.putShort((short) code);
+                } else {
+                    buffer.putInt(code);
+                }
+            }
+            // The data length was computed before the padding was known.
+            buffer.putInt(start - 8, buffer.position() - start);
+            pad();
+        }
+
+        void writeTo(OutputStream out, byte kind, boolean compress) throws IOException {
+            byte[] payload = new byte[buffer.position()];
+            ((ByteBuffer) buffer.duplicate().flip()).get(payload);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putShort(VERSION).put(kind)
+                    .put((byte) (compress ? FLAG_COMPRESSED : 0))
+                    .putInt(columns).putInt(payload.length);
+            out.write(header.array());
+            if (compress) {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    deflater.setInput(payload);
+                    deflater.finish();
+                    byte[] chunk = new byte[1 << 16];
+                    while (!deflater.finished()) {
+                        out.write(chunk, 0, deflater.deflate(chunk));
+                    }
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                out.write(payload);
+            }
+        }
+    }
+
+    private static int align(int pos) {
+        return (pos + 7) & ~7;
+    }
+
+    /**
+     * Memory-maps a file written by this class.
+     */
+    public static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * @param buffer buffer starting with the header, its position is not changed
+     */
+    public static Columns columns(ByteBuffer buffer) throws IOException {
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = b.position();
+        if (b.remaining() < HEADER_SIZE || b.getInt(start) != MAGIC) {
+            throw new IOException("Not a binary PRank file");
+        }
+        short version = b.getShort(start + 4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary format version " + version);
+        }
+        byte kind = b.get(start + 6);
+        byte flags = b.get(start + 7);
+        int columnCount = b.getInt(start + 8);
+        int payloadLength = b.getInt(start + 12);
+        b.position(start + HEADER_SIZE);
+        ByteBuffer payload;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            byte[] compressed = new byte[b.remaining()];
+            b.get(compressed);
+            byte[] raw = new byte[payloadLength];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int n = 0;
+                while (n < raw.length && !inflater.finished()) {
+                    int k = inflater.inflate(raw, n, raw.length - n);
+                    if (k == 0 && inflater.needsInput()) break;
+                    n += k;
+                }
+                if (n != raw.length) throw new IOException("Truncated binary PRank file");
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted binary PRank file", e);
+            } finally {
+                inflater.end();
+            }
+            payload = ByteBuffer.wrap(raw);
+        } else {
+            b.limit(b.position() + payloadLength);
+            payload = b.slice();
+        }
+        return new Columns(kind, payload.order(ByteOrder.LITTLE_ENDIAN), columnCount);
+    }
+
+    private static Columns columns(ByteBuffer buffer, byte kind) throws IOException {
+        Columns columns = columns(buffer);
+        if (columns.getKind() != kind) {
+            throw new IOException("Unexpected kind of binary PRank file " + columns.getKind());
+        }
+        return columns;
+    }
+
+    private static int[] toArray(IntBuffer b) {
+        int[] result = new int[b.remaining()];
+        b.get(result);
+        return result;
+    }
+
+    private static float[] toArray(FloatBuffer b) {
+        float[] result = new float[b.remaining()];
+        b.get(result);
+        return result;
+    }
+
+    private static double[] toArray(DoubleBuffer b) {
+        double[] result = new double[b.remaining()];
+        b.get(result);
+        return result;
+    }
+
+    private static long[] toArray(LongBuffer b) {
+        long[] result = new long[b.remaining()];
+        b.get(result);
+        return result;
+    }
+
+    /**
+     * Writes the sequence, null arrays are left out and read back as null.
+     */
+    public static void writeSequence(Sequence sequence, OutputStream out, boolean compress)
+            throws IOException {
+        ColumnWriter w = new ColumnWriter();
+        if (sequence.getIndices() != null) w.strings("indices", sequence.getIndices());
+        if (sequence.getSeq() != null) w.strings("seq", sequence.getSeq());
+        if (sequence.getScores() != null) w.doubles("scores", sequence.getScores());
+        if (sequence.getBindingSites() != null) w.ints("bindingSites", sequence.getBindingSites());
+        Sequence.Region[] regions = sequence.getRegions();
+        if (regions != null) {
+            String[] names = new String[regions.length];
+            int[] starts = new int[regions.length];
+            int[] ends = new int[regions.length];
+            for (int i = 0; i < regions.length; i++) {
+                names[i] = regions[i].getRegionName();
+                starts[i] = regions[i].getStart();
+                ends[i] = regions[i].getEnd();
+            }
+            w.strings("regions.name", names);
+            w.ints("regions.start", starts);
+            w.ints("regions.end", ends);
+        }
+        w.writeTo(out, KIND_SEQUENCE, compress);
+    }
+
+    public static Sequence readSequence(ByteBuffer buffer) throws IOException {
+        Columns c = columns(buffer, KIND_SEQUENCE);
+        Sequence sequence = new Sequence();
+        if (c.has("indices")) sequence.setIndices(c.getStrings("indices").toArray());
+        if (c.has("seq")) sequence.setSeq(c.getStrings("seq").toArray());
+        if (c.has("scores")) sequence.setScores(toArray(c.getDoubles("scores")));
+        if (c.has("bindingSites")) sequence.setBindingSites(toArray(c.getInts("bindingSites")));
+        if (c.has("regions.name")) {
+            StringColumn names = c.getStrings("regions.name");
+            IntBuffer starts = c.getInts("regions.start");
+            IntBuffer ends = c.getInts("regions.end");
+            Sequence.Region[] regions = new Sequence.Region[names.size()];
+            for (int i = 0; i < regions.length; i++) {
+                regions[i] = new Sequence.Region(names.get(i), starts.get(i), ends.get(i));
+            }
+            sequence.setRegions(regions);
+        }
+        return sequence;
+    }
+
+    public static void writePockets(List<Pocket> pockets, OutputStream out, boolean compress)
+            throws IOException {
+        int n = pockets.size();
+        String[] names = new String[n];
+        int[] ranks = new int[n], connollyPoints = new int[n], surfaceAtoms = new int[n];
+        float[] scores = new float[n], x = new float[n], y = new float[n], z = new float[n];
+        int[] residueOffsets = new int[n + 1], atomOffsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            Pocket p = pockets.get(i);
+            names[i] = p.getName();
+            ranks[i] = p.getRank();
+            scores[i] = p.getScore();
+            connollyPoints[i] = p.getNumOfConnollyPoints();
+            surfaceAtoms[i] = p.getNumOfSurfaceAtoms();
+            x[i] = p.getCenterX();
+            y[i] = p.getCenterY();
+            z[i] = p.getCenterZ();
+            residueOffsets[i + 1] = residueOffsets[i]
+                    + (p.getResidueIds() != null ? p.getResidueIds().length : 0);
+            atomOffsets[i + 1] = atomOffsets[i]
+                    + (p.getSurfAtomIds() != null ? p.getSurfAtomIds().length : 0);
+        }
+        String[] residueIds = new String[residueOffsets[n]];
+        int[] atomIds = new int[atomOffsets[n]];
+        for (int i = 0; i < n; i++) {
+            Pocket p = pockets.get(i);
+            if (p.getResidueIds() != null) {
+                System.arraycopy(p.getResidueIds(), 0, residueIds, residueOffsets[i],
+                        p.getResidueIds().length);
+            }
+            if (p.getSurfAtomIds() != null) {
+                System.arraycopy(p.getSurfAtomIds(), 0, atomIds, atomOffsets[i],
+                        p.getSurfAtomIds().length);
+            }
+        }
+        ColumnWriter w = new ColumnWriter();
+        w.strings("name", names);
+        w.ints("rank", ranks);
+        w.floats("score", scores);
+        w.ints("connollyPoints", connollyPoints);
+        w.ints("surfaceAtoms", surfaceAtoms);
+        w.floats("centerX", x);
+        w.floats("centerY", y);
+        w.floats("centerZ", z);
+        w.ints("residueIds.offsets", residueOffsets);
+        w.strings("residueIds", residueIds);
+        w.ints("surfAtomIds.offsets", atomOffsets);
+        w.ints("surfAtomIds", atomIds);
+        w.writeTo(out, KIND_POCKETS, compress);
+    }
+
+    public static List<Pocket> readPockets(ByteBuffer buffer) throws IOException {
+        Columns c = columns(buffer, KIND_POCKETS);
+        StringColumn names = c.getStrings("name");
+        IntBuffer ranks = c.getInts("rank");
+        FloatBuffer scores = c.getFloats("score");
+        IntBuffer connollyPoints = c.getInts("connollyPoints");
+        IntBuffer surfaceAtoms = c.getInts("surfaceAtoms");
+        FloatBuffer x = c.getFloats("centerX");
+        FloatBuffer y = c.getFloats("centerY");
+        FloatBuffer z = c.getFloats("centerZ");
+        IntBuffer residueOffsets = c.getInts("residueIds.offsets");
+        StringColumn residueIds = c.getStrings("residueIds");
+        IntBuffer atomOffsets = c.getInts("surfAtomIds.offsets");
+        IntBuffer atomIds = c.getInts("surfAtomIds");
+        List<Pocket> result = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            Pocket p = new Pocket();
+            p.setName(names.get(i));
+            p.setRank(ranks.get(i));
+            p.setScore(scores.get(i));
+            p.setNumOfConnollyPoints(connollyPoints.get(i));
+            p.setNumOfSurfaceAtoms(surfaceAtoms.get(i));
+            p.setCenterX(x.get(i));
+            p.setCenterY(y.get(i));
+            p.setCenterZ(z.get(i));
+            String[] residues = new String[residueOffsets.get(i + 1) - residueOffsets.get(i)];
+            for (int k = 0; k < residues.length; k++) {
+                residues[k] = residueIds.get(residueOffsets.get(i) + k);
+            }
+            p.setResidueIds(residues);
+            int[] atoms = new int[atomOffsets.get(i + 1) - atomOffsets.get(i)];
+            ((IntBuffer) atomIds.duplicate().position(atomOffsets.get(i))).get(atoms);
+            p.setSurfAtomIds(atoms);
+            result.add(p);
+        }
+        return result;
+    }
+
+    public static void writeConservationScore(ConservationScore score, OutputStream out,
+                                              boolean compress) throws IOException {
+        ResidueScoreTable table = score.getScoreTable();
+        ColumnWriter w = new ColumnWriter();
+        w.strings("chainIds", table.getChainIds());
+        w.longs("keys", table.getKeys());
+        w.doubles("scores", table.getScores());
+        w.writeTo(out, KIND_CONSERVATION, compress);
+    }
+
+    public static ConservationScore readConservationScore(ByteBuffer buffer) throws IOException {
+        Columns c = columns(buffer, KIND_CONSERVATION);
+        return ConservationScore.fromTable(ResidueScoreTable.fromColumns(
+                c.getStrings("chainIds").toArray(), toArray(c.getLongs("keys")),
+                toArray(c.getDoubles("scores"))));
+    }
+
+    // static utility class
+    private BinaryFormat() {}
+}
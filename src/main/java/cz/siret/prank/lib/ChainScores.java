@@ -0,0 +1,307 @@
+package cz.siret.prank.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import cz.siret.prank.lib.utils.ResidueEncoding;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Conservation scores of one chain in parallel primitive arrays: the index of the alignment
+ * column, its score and the residue of the query sequence encoded by
+ * {@link ResidueEncoding}. Gaps of the query sequence are not included.
+ *
+ * The score files are parsed directly from the (optionally compressed) byte stream, the
+ * fields are read in place from the read buffer, so nothing is allocated per line. Empty
+ * lines and comments (starting with #) are skipped, fields are separated by tabs:
+ * <pre>
+ * JSDFormat:       index  score   column   (the first residue of the column is the query)
+ * ConCavityFormat: index  residue score
+ * </pre>
+ * Negative scores (gap columns of the JSD script) are stored as 0. A malformed line throws
+ * {@link NumberFormatException}.
+ */
+final class ChainScores {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /** Digits of a mantissa that is exactly representable by a double. */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private final int[] indices;
+    private final double[] scores;
+    private final byte[] residues;
+
+    /**
+     * @param residues Residues encoded by {@link ResidueEncoding}, all arrays have the same
+     *                 length
+     */
+    ChainScores(int[] indices, double[] scores, byte[] residues) {
+        if (indices.length != scores.length || indices.length != residues.length) {
+            throw new IllegalArgumentException("Arrays of different lengths");
+        }
+        this.indices = indices;
+        this.scores = scores;
+        this.residues = residues;
+    }
+
+    int size() {
+        return indices.length;
+    }
+
+    /**
+     * @return index of the alignment column of the i-th residue
+     */
+    int getIndex(int i) {
+        return indices[i];
+    }
+
+    double getScore(int i) {
+        return scores[i];
+    }
+
+    byte getResidue(int i) {
+        return residues[i];
+    }
+
+    /**
+     * @return the encoded residues, shared with this instance (must not be modified)
+     */
+    byte[] getResidues() {
+        return residues;
+    }
+
+    /**
+     * @return approximate memory used by the instance in bytes
+     */
+    long estimateBytes() {
+        return 64 + 13L * size();
+    }
+
+    static ChainScores parse(File scoreFile, ConservationScore.ScoreFormat format)
+            throws IOException {
+        try (InputStream in = Utils.INSTANCE.readFile(scoreFile)) {
+            return parse(in, format);
+        }
+    }
+
+    static ChainScores parse(InputStream in, ConservationScore.ScoreFormat format)
+            throws IOException {
+        Parser parser = new Parser(format);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            parser.feed(buffer, read);
+        }
+        return parser.finish();
+    }
+
+    private static final class Parser {
+        private final ConservationScore.ScoreFormat format;
+        /** Start of the part of the line that continues in the next read. */
+        private byte[] carry = new byte[256];
+        private int carryLength = 0;
+        private int[] indices = new int[1024];
+        private double[] scores = new double[1024];
+        private byte[] residues = new byte[1024];
+        private int size = 0;
+        private int lineNumber = 0;
+
+        private Parser(ConservationScore.ScoreFormat format) {
+            this.format = format;
+        }
+
+        private void feed(byte[] buffer, int length) {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    if (carryLength > 0) {
+                        append(buffer, start, i);
+                        parseLine(carry, 0, carryLength);
+                        carryLength = 0;
+                    } else {
+                        parseLine(buffer, start, i);
+                    }
+                    start = i + 1;
+                }
+            }
+            append(buffer, start, length);
+        }
+
+        private void append(byte[] buffer, int from, int to) {
+            int n = to - from;
+            if (carryLength + n > carry.length) {
+                carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + n));
+            }
+            System.arraycopy(buffer, from, carry, carryLength, n);
+            carryLength += n;
+        }
+
+        private ChainScores finish() {
+            if (carryLength > 0) {
+                parseLine(carry, 0, carryLength);
+                carryLength = 0;
+            }
+            return new ChainScores(Arrays.copyOf(indices, size), Arrays.copyOf(scores, size),
+                    Arrays.copyOf(residues, size));
+        }
+
+        private void parseLine(byte[] line, int from, int to) {
+            // \r\n line breaks give empty lines.
+            if (from == to) return;
+            lineNumber++;
+            if (line[from] == '#') return;
+            int tab1 = indexOf(line, '\t', from, to);
+            int tab2 = tab1 < 0 ? -1 : indexOf(line, '\t', tab1 + 1, to);
+            if (tab2 < 0) {
+                if (isBlank(line, from, to)) return;
+                throw malformed(line, from, to);
+            }
+            int end = indexOf(line, '\t', tab2 + 1, to);
+            end = end < 0 ? to : end;
+            int index = parseInt(line, from, tab1);
+            double score;
+            byte residue;
+            if (format == ConservationScore.ScoreFormat.ConCavityFormat) {
+                residue = parseResidue(line, tab1 + 1, tab2, true);
+                score = parseDouble(line, tab2 + 1, end);
+            } else {
+                score = parseDouble(line, tab1 + 1, tab2);
+                residue = parseResidue(line, tab2 + 1, end, false);
+            }
+            if (residue == '-') return;
+            if (size == indices.length) {
+                int capacity = size * 2;
+                indices = Arrays.copyOf(indices, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+                residues = Arrays.copyOf(residues, capacity);
+            }
+            indices[size] = index;
+            scores[size] = score < 0 ? 0 : score;
+            residues[size] = residue;
+            size++;
+        }
+
+        /**
+         * @param whole The field is a single residue (ConCavity), otherwise the first residue
+         *              of the field (an alignment column) is used
+         */
+        private byte parseResidue(byte[] line, int from, int to, boolean whole) {
+            while (from < to && line[from] == ' ') from++;
+            while (to > from && line[to - 1] == ' ') to--;
+            if (from == to) throw malformed(line, from, to);
+            if (whole && to - from != 1) {
+                return ResidueEncoding.UNKNOWN_SCORE_RESIDUE;
+            }
+            return ResidueEncoding.encode(line[from], ResidueEncoding.UNKNOWN_SCORE_RESIDUE);
+        }
+
+        private int parseInt(byte[] line, int from, int to) {
+            while (from < to && line[from] == ' ') from++;
+            while (to > from && line[to - 1] == ' ') to--;
+            int i = from;
+            boolean negative = i < to && line[i] == '-';
+            if (i < to && (line[i] == '-' || line[i] == '+')) i++;
+            if (i == to || to - i > 9) {
+                // Too long values are left to the JDK, it also reports the errors.
+                return Integer.parseInt(new String(line, from, to - from,
+                        StandardCharsets.US_ASCII));
+            }
+            int value = 0;
+            for (; i < to; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9) throw malformed(line, from, to);
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Parses plain decimal numbers with at most 15 significant digits and a small
+         * exponent exactly (the mantissa and the power of ten are exact doubles, so one
+         * multiplication or division rounds correctly), anything else by the JDK.
+         */
+        private double parseDouble(byte[] line, int from, int to) {
+            while (from < to && line[from] == ' ') from++;
+            while (to > from && line[to - 1] == ' ') to--;
+            int i = from;
+            boolean negative = i < to && line[i] == '-';
+            if (i < to && (line[i] == '-' || line[i] == '+')) i++;
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean anyDigit = false;
+            boolean fraction = false;
+            for (; i < to; i++) {
+                byte b = line[i];
+                if (b >= '0' && b <= '9') {
+                    anyDigit = true;
+                    if (mantissa != 0 || b != '0') {
+                        if (++digits > MAX_EXACT_DIGITS) return parseDoubleSlow(line, from, to);
+                        mantissa = mantissa * 10 + (b - '0');
+                    }
+                    if (fraction) exponent--;
+                } else if (b == '.' && !fraction) {
+                    fraction = true;
+                } else if ((b == 'e' || b == 'E') && anyDigit) {
+                    int e = 0;
+                    int j = i + 1;
+                    boolean negativeExponent = j < to && line[j] == '-';
+                    if (j < to && (line[j] == '-' || line[j] == '+')) j++;
+                    if (j == to || to - j > 3) return parseDoubleSlow(line, from, to);
+                    for (; j < to; j++) {
+                        int digit = line[j] - '0';
+                        if (digit < 0 || digit > 9) return parseDoubleSlow(line, from, to);
+                        e = e * 10 + digit;
+                    }
+                    exponent += negativeExponent ? -e : e;
+                    break;
+                } else {
+                    return parseDoubleSlow(line, from, to);
+                }
+            }
+            if (!anyDigit) return parseDoubleSlow(line, from, to);
+            double value;
+            if (mantissa == 0) {
+                value = 0;
+            } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+                value = mantissa * POWERS_OF_TEN[exponent];
+            } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                value = mantissa / POWERS_OF_TEN[-exponent];
+            } else {
+                return parseDoubleSlow(line, from, to);
+            }
+            return negative ? -value : value;
+        }
+
+        private double parseDoubleSlow(byte[] line, int from, int to) {
+            return Double.parseDouble(new String(line, from, to - from,
+                    StandardCharsets.US_ASCII));
+        }
+
+        private NumberFormatException malformed(byte[] line, int from, int to) {
+            return new NumberFormatException(String.format("Malformed score line %d: %s",
+                    lineNumber, new String(line, from, to - from, StandardCharsets.UTF_8)));
+        }
+
+        private static int indexOf(byte[] line, char c, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (line[i] == c) return i;
+            }
+            return -1;
+        }
+
+        private static boolean isBlank(byte[] line, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (line[i] != ' ' && line[i] != '\t') return false;
+            }
+            return true;
+        }
+    }
+}
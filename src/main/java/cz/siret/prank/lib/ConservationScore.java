@@ -1,8 +1,5 @@
 package cz.siret.prank.lib;
 
-import com.univocity.parsers.tsv.TsvParser;
-import com.univocity.parsers.tsv.TsvParserSettings;
-
 import org.biojava.nbio.structure.Chain;
 import org.biojava.nbio.structure.Group;
 import org.biojava.nbio.structure.GroupType;
@@ -16,26 +13,29 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.BitParallelLcs;
+import cz.siret.prank.lib.utils.Metrics;
+import cz.siret.prank.lib.utils.ResidueEncoding;
 import cz.siret.prank.lib.utils.Tuple;
 import cz.siret.prank.lib.utils.Tuple2;
 import cz.siret.prank.lib.utils.Tuple3;
-import cz.siret.prank.lib.utils.Utils;
 
 public class ConservationScore implements Serializable {
-    private Map<ResidueNumberWrapper, Double> scores;
+    private final ResidueScoreTable scores;
     private final transient Logger logger = LoggerFactory.getLogger(getClass());
 
-    private ConservationScore(Map<ResidueNumberWrapper, Double> scores) {
+    private ConservationScore(ResidueScoreTable scores) {
         this.scores = scores;
     }
 
@@ -43,24 +43,38 @@ public class ConservationScore implements Serializable {
             throws IOException, StructureException {
         List<Tuple2<File, String>> scoreFiles = new ArrayList<>(files.length);
         for (File pdbFile : files) {
-            Tuple2<String, String> baseAndExt = BioUtils.INSTANCE.removePdbExtension(pdbFile.getName());
-            Path parentDir = Paths.get(pdbFile.getParent());
-            pickScoresForFile(pdbFile).forEach(t-> {
-                String chainId = t.getItem3();
-                File scoreFile = parentDir.
-                        resolve(baseAndExt.getItem1() + chainId.toUpperCase()
-                                + baseAndExt.getItem2() + ".hom.gz")
-                        .toFile();
-                scoreFiles.add(Tuple.create(t.getItem1(), scoreFile.getName()));
-            });
+            scoreFiles.addAll(pickScoresForPDB(pdbFile));
         }
         return scoreFiles;
     }
 
+    /**
+     * Picks score files for a single PDB file, see {@link #pickScoresForPDBs(File[])}.
+     * Used by the batch mode to process files independently of each other.
+     *
+     * @return list of (picked score file, expected score file name) pairs, one per chain
+     */
+    public static List<Tuple2<File, String>> pickScoresForPDB(File pdbFile) throws IOException {
+        List<Tuple2<File, String>> scoreFiles = new ArrayList<>();
+        Tuple2<String, String> baseAndExt = BioUtils.INSTANCE.removePdbExtension(pdbFile.getName());
+        Path parentDir = Paths.get(pdbFile.getParent());
+        pickScoresForFile(pdbFile).forEach(t-> {
+            String chainId = t.getItem3();
+            File scoreFile = parentDir.
+                    resolve(baseAndExt.getItem1() + chainId.toUpperCase()
+                            + baseAndExt.getItem2() + ".hom.gz")
+                    .toFile();
+            scoreFiles.add(Tuple.create(t.getItem1(), scoreFile.getName()));
+        });
+        return scoreFiles;
+    }
+
     public static Map<String, String> pickScores(Structure protein,
                                                  Map<String, File> conservationFiles)
             throws IOException {
         Map<String, String> result = new HashMap<>();
+        // Identical chains (homo-oligomers) pick the same scores, the search runs once.
+        Map<String, String> pickedBySequence = new HashMap<>();
         for (Chain chain : protein.getChains()) {
             // Skip non-protein chains.
             if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) continue;
@@ -72,18 +86,28 @@ public class ConservationScore implements Serializable {
                 continue;
             }
             // Fallback case. Try all chains and pick the one with longest LCS.
-            int max = -1;
-            String newScoreChain = null;
-            for (Map.Entry<String, File> possibleScoreFile : conservationFiles.entrySet()) {
-                List<ConservationScore.AA> scores = loadScoreFile(possibleScoreFile.getValue(),
-                        ConservationScore.ScoreFormat.JSDFormat);
-                int[][] lcs = calcLongestCommonSubSequence(
-                        chain.getAtomGroups(GroupType.AMINOACID), scores);
-                int length = lcs[lcs.length - 1][lcs[lcs.length - 1].length - 1];
-                if (max < length) {
-                    max = length;
-                    newScoreChain = possibleScoreFile.getKey();
+            byte[] sequence = ResidueEncoding.encodeGroups(
+                    chain.getAtomGroups(GroupType.AMINOACID));
+            String sequenceKey = sequenceKey(sequence);
+            String newScoreChain;
+            if (pickedBySequence.containsKey(sequenceKey)) {
+                newScoreChain = pickedBySequence.get(sequenceKey);
+                Metrics.INSTANCE.increment("reused_chain_pickings");
+            } else {
+                long start = Metrics.INSTANCE.start();
+                int max = -1;
+                newScoreChain = null;
+                for (Map.Entry<String, File> possibleScoreFile : conservationFiles.entrySet()) {
+                    ChainScores scores = loadScoreFile(possibleScoreFile.getValue(),
+                            ConservationScore.ScoreFormat.JSDFormat);
+                    int length = BitParallelLcs.length(sequence, scores.getResidues());
+                    if (max < length) {
+                        max = length;
+                        newScoreChain = possibleScoreFile.getKey();
+                    }
                 }
+                Metrics.INSTANCE.record(Metrics.CHAIN_PICKING, chainId, start, -1);
+                pickedBySequence.put(sequenceKey, newScoreChain);
             }
             if (newScoreChain != null) {
                 result.put(chainId, newScoreChain);
@@ -96,6 +120,8 @@ public class ConservationScore implements Serializable {
             IOException {
         List<Tuple3<File, String, String>> result = new ArrayList<>();
         Structure s = BioUtils.INSTANCE.loadPdbFile(pdbFile);
+        // Identical chains (homo-oligomers) pick the same file, the search runs once.
+        Map<String, File> pickedBySequence = new HashMap<>();
         for (Chain chain : s.getChains()) {
             // Skip non-protein chains.
             if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) continue;
@@ -112,22 +138,31 @@ public class ConservationScore implements Serializable {
                 continue;
             }
             // Fallback case. Try all chains and pick the one with longest LCS.
-            File[] possibleScoreFiles = parentDir.toFile().listFiles(
-                    (File dir, String name) -> {
-                        return name.startsWith(baseAndExt.getItem1()) && name.endsWith(".hom.gz");
-                    });
-            int max = -1;
-            File newScoreFile = null;
-            assert possibleScoreFiles != null;
-            for (File possibleScoreFile : possibleScoreFiles) {
-                List<AA> scores = loadScoreFile(possibleScoreFile, ScoreFormat.JSDFormat);
-                int[][] lcs = calcLongestCommonSubSequence(
-                        chain.getAtomGroups(GroupType.AMINOACID), scores);
-                int length = lcs[lcs.length - 1][lcs[lcs.length - 1].length - 1];
-                if (max < length) {
-                    max = length;
-                    newScoreFile = possibleScoreFile;
+            byte[] sequence = ResidueEncoding.encodeGroups(
+                    chain.getAtomGroups(GroupType.AMINOACID));
+            String sequenceKey = sequenceKey(sequence);
+            File newScoreFile;
+            if (pickedBySequence.containsKey(sequenceKey)) {
+                newScoreFile = pickedBySequence.get(sequenceKey);
+                Metrics.INSTANCE.increment("reused_chain_pickings");
+            } else {
+                File[] possibleScoreFiles = parentDir.toFile().listFiles(
+                        (File dir, String name) -> {
+                            return name.startsWith(baseAndExt.getItem1())
+                                    && name.endsWith(".hom.gz");
+                        });
+                int max = -1;
+                newScoreFile = null;
+                assert possibleScoreFiles != null;
+                for (File possibleScoreFile : possibleScoreFiles) {
+                    ChainScores scores = loadScoreFile(possibleScoreFile, ScoreFormat.JSDFormat);
+                    int length = BitParallelLcs.length(sequence, scores.getResidues());
+                    if (max < length) {
+                        max = length;
+                        newScoreFile = possibleScoreFile;
+                    }
                 }
+                pickedBySequence.put(sequenceKey, newScoreFile);
             }
             if (newScoreFile != null) {
                 result.add(Tuple.create(newScoreFile, baseAndExt.getItem1(), chainId));
@@ -136,35 +171,44 @@ public class ConservationScore implements Serializable {
         return result;
     }
 
-    private static class AA {
-        public String letter;
-        public double score;
-        public int index;
+    public double getScoreForResidue(ResidueNumber residueNum) {
+        return scores.getScore(residueNum, 0);
+    }
 
-        public AA(String letter, double score, int index) {
-            this.letter = letter;
-            this.score = score;
-            this.index = index;
-        }
+    public double getScoreForResidue(ResidueNumberWrapper residueNum) {
+        return getScoreForResidue(residueNum.getResNum());
     }
 
-    public double getScoreForResidue(ResidueNumber residueNum) {
-        return getScoreForResidue(new ResidueNumberWrapper(residueNum));
+    /**
+     * Scores of all groups of one chain, 0 for groups without a score.
+     */
+    public double[] getScoresForChain(String chainId, List<Group> groups) {
+        return scores.getScores(chainId, groups, 0);
     }
 
-    public double getScoreForResidue(ResidueNumberWrapper residueNum) {
-        Double res = scores.get(residueNum);
-        if (res == null) {
-            return 0;
-        } else {
-            return res.doubleValue();
-        }
+    static ConservationScore fromTable(ResidueScoreTable scores) {
+        return new ConservationScore(scores);
     }
 
-    public Map<ResidueNumberWrapper, Double> getScoreMap() {
+    /**
+     * @return conservation of the residues of the pockets, see {@link PocketConservation}
+     */
+    public PocketConservation getPocketConservation(List<Pocket> pockets) {
+        return PocketConservation.compute(pockets, scores);
+    }
+
+    public ResidueScoreTable getScoreTable() {
         return scores;
     }
 
+    /**
+     * @return copy of the scores, use {@link #getScoreTable()} for lookups. The wrapper
+     * ignores chains, so equal residue numbers of different chains collide in the map.
+     */
+    public Map<ResidueNumberWrapper, Double> getScoreMap() {
+        return scores.toMap();
+    }
+
     public int size() {
         return this.scores.size();
     }
@@ -174,33 +218,21 @@ public class ConservationScore implements Serializable {
         JSDFormat
     }
 
-    private static List<AA> loadScoreFile(File scoreFile, ScoreFormat format) throws IOException {
-        TsvParserSettings settings = new TsvParserSettings();
-        settings.setLineSeparatorDetectionEnabled(true);
-        TsvParser parser = new TsvParser(settings);
-        List<String[]> lines = parser.parseAll(Utils.INSTANCE.readFile(scoreFile));
-        List<AA> result = new ArrayList<>(lines.size());
-        for (String[] line : lines) {
-            int index = -1;
-            double score = 0;
-            String letter = "-";
-            switch (format) {
-                case ConCavityFormat:
-                    index = Integer.parseInt(line[0]);
-                    letter = line[1];
-                    score = Double.parseDouble(line[2]);
-                    break;
-                case JSDFormat:
-                    index = Integer.parseInt(line[0]);
-                    score = Double.parseDouble(line[1]);
-                    letter = line[2].substring(0, 1);
-                    break;
-            }
-            score = score < 0 ? 0 : score;
-            if (letter != "-") {
-                result.add(new AA(letter, score, index));
-            }
-        }
+    /**
+     * Returns parsed score file, each file is parsed only once while it stays in
+     * {@link ScoreFileCache}.
+     */
+    static ChainScores loadScoreFile(File scoreFile, ScoreFormat format) throws IOException {
+        return ScoreFileCache.INSTANCE.get(scoreFile, format, ConservationScore::parseScoreFile);
+    }
+
+    /**
+     * Parses the score file, see {@link ChainScores} for the formats.
+     */
+    static ChainScores parseScoreFile(File scoreFile, ScoreFormat format) throws IOException {
+        long start = Metrics.INSTANCE.start();
+        ChainScores result = ChainScores.parse(scoreFile, format);
+        Metrics.INSTANCE.record(Metrics.SCORE_PARSE, null, start, scoreFile.length());
         return result;
     }
 
@@ -215,32 +247,98 @@ public class ConservationScore implements Serializable {
      * @param chainScores Parse conservation scores.
      * @param outResult   Add matched scores end map (residual number -> conservation score)
      */
-    public static void matchSequences(List<Group> chain, List<AA> chainScores,
+    public static void matchSequences(List<Group> chain, ChainScores chainScores,
                                       Map<ResidueNumberWrapper, Double> outResult) {
-        // Check if the strings match
-        String pdbChain = chain.stream().map(ch -> ch.getChemComp().getOne_letter_code()
-                .toUpperCase()).collect(Collectors.joining());
-        String scoreChain = chainScores.stream().map(ch -> ch.letter.toUpperCase())
-                .collect(Collectors.joining());
-        if (pdbChain.equals(scoreChain)) {
-            for (int i = 0; i < chainScores.size(); i++) {
+        int[] mapping = matchResidues(chain, ResidueEncoding.encodeGroups(chain),
+                chainScores.getResidues());
+        for (int i = 0; i < mapping.length; i++) {
+            if (mapping[i] >= 0) {
                 outResult.put(new ResidueNumberWrapper(chain.get(i).getResidueNumber()),
-                        chainScores.get(i).score);
+                        chainScores.getScore(mapping[i]));
+            }
+        }
+    }
+
+    /**
+     * @param chain       Chain start PDB Structure
+     * @param chainScores Parse conservation scores.
+     * @param outResult   Add matched scores end the table builder
+     */
+    public static void matchSequences(List<Group> chain, ChainScores chainScores,
+                                      ResidueScoreTable.Builder outResult) {
+        int[] mapping = matchResidues(chain, ResidueEncoding.encodeGroups(chain),
+                chainScores.getResidues());
+        applyMapping(chain, mapping, chainScores, outResult);
+    }
+
+    private static void applyMapping(List<Group> chain, int[] mapping, ChainScores chainScores,
+                                     ResidueScoreTable.Builder outResult) {
+        for (int i = 0; i < mapping.length; i++) {
+            if (mapping[i] >= 0) {
+                outResult.put(chain.get(i).getResidueNumber(), chainScores.getScore(mapping[i]));
+            }
+        }
+    }
+
+    /**
+     * Matches chains to their scores like {@link #matchSequences(List, ChainScores,
+     * ResidueScoreTable.Builder)}, but aligns every distinct pair of a chain sequence and
+     * score sequence only once. The mapping is then applied to the identical chains of
+     * homo-oligomers, each with its own residue numbers.
+     */
+    private static final class ChainMatcher {
+        private final Map<String, int[]> mappings = new HashMap<>();
+
+        private void match(List<Group> chain, ChainScores chainScores,
+                           ResidueScoreTable.Builder outResult) {
+            byte[] pdbChain = ResidueEncoding.encodeGroups(chain);
+            String key = sequenceKey(pdbChain) + '\t' + sequenceKey(chainScores.getResidues());
+            int[] mapping = mappings.get(key);
+            if (mapping == null) {
+                mapping = matchResidues(chain, pdbChain, chainScores.getResidues());
+                mappings.put(key, mapping);
+            } else {
+                Metrics.INSTANCE.increment("reused_chain_matchings");
+            }
+            applyMapping(chain, mapping, chainScores, outResult);
+        }
+    }
+
+    /**
+     * @param sequence Chain encoded by {@link ResidueEncoding}
+     * @return key equal for identical sequences
+     */
+    private static String sequenceKey(byte[] sequence) {
+        return new String(sequence, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return for every group of the chain the index of its score, or -1 if not matched
+     */
+    private static int[] matchResidues(List<Group> chain, byte[] pdbChain, byte[] scoreChain) {
+        long start = Metrics.INSTANCE.start();
+        String chainId = chain.isEmpty() ? null : chain.get(0).getResidueNumber().getChainId();
+        int[] mapping = new int[pdbChain.length];
+        // Check if the strings match
+        if (Arrays.equals(pdbChain, scoreChain)) {
+            for (int i = 0; i < mapping.length; i++) {
+                mapping[i] = i;
             }
-            return;
+            Metrics.INSTANCE.record(Metrics.CHAIN_MATCHING, chainId, start, -1);
+            return mapping;
         }
 
-        System.out.println("Matching chains using LCS");
-        int[][] lcs = calcLongestCommonSubSequence(chain, chainScores);
+        // Chains that differ are aligned by LCS.
+        Metrics.INSTANCE.increment("lcs_matchings");
+        Arrays.fill(mapping, -1);
+        int[][] lcs = calcLongestCommonSubSequence(pdbChain, scoreChain);
 
         // Backtrack the actual sequence.
-        int i = chain.size(), j = chainScores.size();
+        int i = pdbChain.length, j = scoreChain.length;
         while (i > 0 && j > 0) {
             // Letters are equal.
-            if (chain.get(i - 1).getChemComp().getOne_letter_code().toUpperCase().equals(
-                    chainScores.get(j - 1).letter.toUpperCase())) {
-                outResult.put(new ResidueNumberWrapper(chain.get(i - 1).getResidueNumber()),
-                        chainScores.get(j - 1).score);
+            if (pdbChain[i - 1] == scoreChain[j - 1]) {
+                mapping[i - 1] = j - 1;
                 i--;
                 j--;
             } else {
@@ -251,22 +349,46 @@ public class ConservationScore implements Serializable {
                 }
             }
         }
+        Metrics.INSTANCE.record(Metrics.CHAIN_MATCHING, chainId, start, -1);
+        return mapping;
     }
 
-    public static int[][] calcLongestCommonSubSequence(List<Group> chain, List<AA> chainScores) {
+    /**
+     * Length of the longest common subsequence of the chain and the parsed scores.
+     * Uses the bit-parallel kernel, so no DP matrix is built. Use
+     * {@link #calcLongestCommonSubSequence(byte[], byte[])} only when a backtrack is needed.
+     */
+    public static int calcLongestCommonSubSequenceLength(List<Group> chain,
+                                                         ChainScores chainScores) {
+        return BitParallelLcs.length(ResidueEncoding.encodeGroups(chain),
+                chainScores.getResidues());
+    }
+
+    public static int[][] calcLongestCommonSubSequence(List<Group> chain,
+                                                       ChainScores chainScores) {
+        return calcLongestCommonSubSequence(ResidueEncoding.encodeGroups(chain),
+                chainScores.getResidues());
+    }
+
+    /**
+     * @param chain       PDB chain encoded by {@link ResidueEncoding}
+     * @param chainScores Score file residues encoded by {@link ResidueEncoding}
+     * @return LCS matrix, the length is in the bottom right corner
+     */
+    public static int[][] calcLongestCommonSubSequence(byte[] chain, byte[] chainScores) {
         // Implementation of Longest Common SubSequence
         // https://en.wikipedia.org/wiki/Longest_common_subsequence_problem
-        int[][] lcs = new int[chain.size() + 1][chainScores.size() + 1];
-        for (int i = 0; i <= chain.size(); i++) lcs[i][0] = 0;
-        for (int j = 0; j <= chainScores.size(); j++) lcs[0][j] = 0;
-        for (int i = 1; i <= chain.size(); i++) {
-            for (int j = 1; j <= chainScores.size(); j++) {
+        int[][] lcs = new int[chain.length + 1][chainScores.length + 1];
+        for (int i = 1; i <= chain.length; i++) {
+            int[] prev = lcs[i - 1];
+            int[] row = lcs[i];
+            byte letter = chain[i - 1];
+            for (int j = 1; j <= chainScores.length; j++) {
                 // Letters are equal.
-                if (chain.get(i - 1).getChemComp().getOne_letter_code().toUpperCase().equals(
-                        chainScores.get(j - 1).letter.toUpperCase())) {
-                    lcs[i][j] = lcs[i - 1][j - 1] + 1;
+                if (letter == chainScores[j - 1]) {
+                    row[j] = prev[j - 1] + 1;
                 } else {
-                    lcs[i][j] = Math.max(lcs[i - 1][j], lcs[i][j - 1]);
+                    row[j] = Math.max(prev[j], row[j - 1]);
                 }
             }
         }
@@ -284,21 +406,22 @@ public class ConservationScore implements Serializable {
     public static ConservationScore fromFiles(Structure structure,
                                               Function<String, File> scoreFiles,
                                               ScoreFormat format) throws IOException {
-        Map<ResidueNumberWrapper, Double> scores = new HashMap<>();
+        ResidueScoreTable.Builder scores = ResidueScoreTable.builder();
+        ChainMatcher matcher = new ChainMatcher();
         for (Chain chain : structure.getChains()) {
             if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) {
                 continue;
             }
             String chainId = chain.getChainID();
             chainId = chainId.trim().isEmpty() ? "A" : chainId;
-            List<AA> chainScores = null;
+            ChainScores chainScores = null;
             File scoreFile = scoreFiles.apply(chainId);
             try {
                 if (scoreFile != null && scoreFile.exists()) {
                     chainScores = ConservationScore.loadScoreFile(scoreFile, format);
                 }
                 if (chainScores != null) {
-                    matchSequences(chain.getAtomGroups(GroupType.AMINOACID), chainScores, scores);
+                    matcher.match(chain.getAtomGroups(GroupType.AMINOACID), chainScores, scores);
                 }
             } catch (NumberFormatException e) {
                 return null;
@@ -307,7 +430,56 @@ public class ConservationScore implements Serializable {
         if (scores.isEmpty()) {
             return null;
         }
-        return new ConservationScore(scores);
+        return new ConservationScore(scores.build());
+    }
+
+    /**
+     * Matches in-memory conservation scores (see {@link JsdConservation}) to the structure.
+     *
+     * @param structure Protein BioJava structure
+     * @param scores    Map from chain ids to the scores of their MSAs
+     * @return new instance of ConservationScore or null if no chain was matched
+     */
+    public static ConservationScore fromScores(Structure structure,
+                                               Map<String, JsdConservation.Scores> scores) {
+        ResidueScoreTable.Builder result = ResidueScoreTable.builder();
+        ChainMatcher matcher = new ChainMatcher();
+        for (Chain chain : structure.getChains()) {
+            if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) {
+                continue;
+            }
+            String chainId = chain.getChainID();
+            chainId = chainId.trim().isEmpty() ? "A" : chainId;
+            JsdConservation.Scores chainScores = scores.get(chainId);
+            if (chainScores != null) {
+                matcher.match(chain.getAtomGroups(GroupType.AMINOACID),
+                        toChainScores(chainScores), result);
+            }
+        }
+        if (result.isEmpty()) {
+            return null;
+        }
+        return new ConservationScore(result.build());
+    }
+
+    private static ChainScores toChainScores(JsdConservation.Scores scores) {
+        double[] values = scores.getScores();
+        int[] indices = new int[values.length];
+        double[] result = new double[values.length];
+        byte[] residues = new byte[values.length];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            char letter = scores.getQueryResidue(i);
+            if (letter != '-') {
+                indices[n] = i;
+                result[n] = values[i] < 0 ? 0 : values[i];
+                residues[n] = ResidueEncoding.encode(String.valueOf(letter),
+                        ResidueEncoding.UNKNOWN_SCORE_RESIDUE);
+                n++;
+            }
+        }
+        return new ChainScores(Arrays.copyOf(indices, n), Arrays.copyOf(result, n),
+                Arrays.copyOf(residues, n));
     }
 
     public static  ConservationScore forFile(File pdbFile, ScoreFormat format) throws IOException {
@@ -0,0 +1,85 @@
+package cz.siret.prank.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stub conservation worker for {@link ConservationWorkerPool}, answers the requests of the
+ * worker protocol by {@link JsdConservation} so that the worker mode can be used and tested
+ * without the conservation script.
+ *
+ * Usage: ConservationWorker [delayMillis], the optional delay is added to every request to
+ * simulate a slow worker.
+ */
+public class ConservationWorker {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long delayMillis = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        OutputStream stdout = new BufferedOutputStream(System.out);
+        // Keep stray prints of the library out of the protocol.
+        System.setOut(System.err);
+        serve(new BufferedInputStream(System.in), stdout, delayMillis);
+    }
+
+    static void serve(InputStream in, OutputStream out, long delayMillis)
+            throws IOException, InterruptedException {
+        String header;
+        while ((header = ConservationWorkerPool.readHeader(in)) != null) {
+            String[] tokens = header.split(" ", 3);
+            String id = tokens[1];
+            if ("PING".equals(tokens[0])) {
+                ConservationWorkerPool.writeHeader(out, "PONG " + id);
+                out.flush();
+                continue;
+            }
+            byte[] body = null;
+            if ("FASTA".equals(tokens[0])) {
+                // The body is read before anything can fail, a request whose body cannot be
+                // skipped breaks the stream, so the worker exits instead of replying ERR.
+                try {
+                    body = ConservationWorkerPool.readBody(in, Integer.parseInt(tokens[2]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("Malformed request: " + header, e);
+                }
+            }
+            byte[] response;
+            boolean ok = false;
+            try {
+                JsdConservation.Scores scores;
+                if ("MSA".equals(tokens[0])) {
+                    scores = JsdConservation.compute(new File(tokens[2]));
+                } else if (body != null) {
+                    scores = JsdConservation.compute(JsdConservation.readFastaAlignment(
+                            new InputStreamReader(new ByteArrayInputStream(body),
+                                    StandardCharsets.UTF_8)));
+                } else {
+                    throw new IOException("Unknown request: " + tokens[0]);
+                }
+                if (delayMillis > 0) Thread.sleep(delayMillis);
+                ByteArrayOutputStream hom = new ByteArrayOutputStream();
+                try (PrintWriter writer = new PrintWriter(
+                        new OutputStreamWriter(hom, StandardCharsets.UTF_8))) {
+                    scores.write(writer);
+                }
+                response = hom.toByteArray();
+                ok = true;
+            } catch (IOException | RuntimeException e) {
+                response = String.valueOf(e).getBytes(StandardCharsets.UTF_8);
+            }
+            ConservationWorkerPool.writeHeader(out,
+                    (ok ? "OK " : "ERR ") + id + " " + response.length);
+            out.write(response);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of long-lived conservation worker processes, so that the conservation script and its
+ * interpreter are started once per worker instead of once per chain.
+ *
+ * A worker reads requests from its stdin and writes responses to its stdout, every frame is
+ * a header line in ASCII, optionally followed by a body of the given number of bytes:
+ * <pre>
+ * request:  MSA id path              (compute the conservation of the MSA file)
+ *           FASTA id length + body   (compute the conservation of the MSA in the body)
+ *           PING id
+ * response: OK id length + body      (the scores in the .hom format)
+ *           ERR id length + body     (error message, the worker keeps running)
+ *           PONG id
+ * </pre>
+ * The worker exits when its stdin is closed. {@link ConservationWorker} is a stub worker
+ * computing the scores by {@link JsdConservation}.
+ *
+ * Every request waits at most the timeout for its response. A worker that times out, exits
+ * or breaks the protocol is killed and replaced by a new process on its next use, a request
+ * whose worker crashed is retried once on the new process. A worker that was idle longer
+ * than the health check interval is pinged before it gets a request.
+ */
+public class ConservationWorkerPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ConservationWorkerPool.class);
+
+    public static final String WORKERS_PROPERTY = "prank.conservation.workers";
+    public static final String TIMEOUT_PROPERTY = "prank.conservation.timeout";
+    public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_HEALTH_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long PING_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final int MAX_HEADER_LENGTH = 4096;
+
+    private final List<String> command;
+    private final File directory;
+    private final BlockingQueue<Worker> idle;
+    private final List<Worker> workers = new ArrayList<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicInteger restarts = new AtomicInteger();
+    private final Thread shutdownHook = new Thread(this::destroyAll, "conservation-pool-hook");
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private long healthCheckMillis = DEFAULT_HEALTH_CHECK_MILLIS;
+    private volatile boolean closed = false;
+
+    /**
+     * @param command   Command starting one worker
+     * @param directory Working directory of the workers, null for the current one
+     * @param size      Number of workers, the processes are started on their first use
+     */
+    public ConservationWorkerPool(List<String> command, File directory, int size) {
+        this.command = new ArrayList<>(command);
+        this.directory = directory;
+        this.idle = new LinkedBlockingQueue<>();
+        for (int i = 0; i < Math.max(size, 1); i++) {
+            Worker worker = new Worker(i + 1);
+            workers.add(worker);
+            idle.add(worker);
+        }
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * @return command running the {@link ConservationWorker} stub in a new JVM with the class
+     * path of this one
+     */
+    public static List<String> stubCommand(String... args) {
+        List<String> result = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"),
+                ConservationWorker.class.getName()));
+        result.addAll(Arrays.asList(args));
+        return result;
+    }
+
+    public int size() {
+        return workers.size();
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @param timeoutMillis Maximum time to wait for the response to a request
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getHealthCheckMillis() {
+        return healthCheckMillis;
+    }
+
+    /**
+     * @param healthCheckMillis Workers idle for longer are pinged before they are used
+     */
+    public void setHealthCheckMillis(long healthCheckMillis) {
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    /**
+     * @return number of worker processes that were killed and replaced
+     */
+    public int getRestarts() {
+        return restarts.get();
+    }
+
+    /**
+     * @return scores of the MSA file in the .hom format
+     */
+    public byte[] compute(File msaFile) throws IOException, InterruptedException {
+        return call("MSA", msaFile.getAbsolutePath(), null);
+    }
+
+    /**
+     * @param fasta MSA in the FASTA format, sent to the worker in the request
+     * @return scores of the MSA in the .hom format
+     */
+    public byte[] compute(byte[] fasta) throws IOException, InterruptedException {
+        return call("FASTA", String.valueOf(fasta.length), fasta);
+    }
+
+    /**
+     * Pings all idle workers, starting those that are not running.
+     *
+     * @return number of healthy workers
+     */
+    public int checkHealth() throws InterruptedException {
+        List<Worker> checked = new ArrayList<>();
+        idle.drainTo(checked);
+        int healthy = 0;
+        for (Worker worker : checked) {
+            if (ping(worker)) {
+                healthy++;
+            } else {
+                restart(worker);
+            }
+            idle.add(worker);
+        }
+        return healthy;
+    }
+
+    private byte[] call(String type, String argument, byte[] body) throws IOException,
+            InterruptedException {
+        if (closed) throw closedException();
+        Worker worker = idle.take();
+        if (closed) {
+            idle.add(worker);
+            throw closedException();
+        }
+        boolean healthy = false;
+        try {
+            Connection connection = worker.connection;
+            if (connection != null && (!connection.process.isAlive() || System.nanoTime()
+                    - worker.lastUsed > TimeUnit.MILLISECONDS.toNanos(healthCheckMillis))) {
+                if (!ping(worker)) restart(worker);
+            }
+            long id = nextId.incrementAndGet();
+            String header = type + " " + id + " " + argument;
+            Response response;
+            try {
+                try {
+                    response = worker.send(header, id, body, timeoutMillis);
+                } catch (IOException e) {
+                    // The worker crashed, retry once on a new process.
+                    logger.warn("Conservation worker {} failed: {}", worker.number,
+                            e.toString());
+                    restart(worker);
+                    response = worker.send(header, id, body, timeoutMillis);
+                }
+            } catch (TimeoutException e) {
+                throw new IOException(String.format("Conservation worker %d timed out after %d ms",
+                        worker.number, timeoutMillis));
+            }
+            healthy = true;
+            if (response.ok) {
+                return response.body;
+            }
+            throw new IOException(String.format("Conservation worker %d failed: %s",
+                    worker.number, new String(response.body, StandardCharsets.UTF_8)));
+        } finally {
+            // Workers returning after close are killed, close could not reach them.
+            if (!healthy || closed) restart(worker);
+            idle.add(worker);
+        }
+    }
+
+    private static IOException closedException() {
+        return new IOException("Conservation worker pool is closed");
+    }
+
+    private boolean ping(Worker worker) throws InterruptedException {
+        long id = nextId.incrementAndGet();
+        try {
+            worker.send("PING " + id, id, null, PING_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException | TimeoutException e) {
+            logger.warn("Conservation worker {} failed the health check: {}", worker.number,
+                    e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Kills the process of the worker, a new one is started on its next use.
+     */
+    private void restart(Worker worker) {
+        if (worker.connection != null) {
+            restarts.incrementAndGet();
+            logger.warn("Restarting conservation worker {}", worker.number);
+        }
+        worker.destroy();
+    }
+
+    private void destroyAll() {
+        closed = true;
+        for (Worker worker : workers) {
+            worker.destroy();
+        }
+    }
+
+    /**
+     * Closes the stdin of the idle workers so that they exit and kills the busy ones. Requests
+     * waiting for a worker fail, no processes are started afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        List<Worker> stopping = new ArrayList<>();
+        idle.drainTo(stopping);
+        for (Worker worker : stopping) {
+            worker.stop();
+        }
+        destroyAll();
+        // Wake up the requests waiting for a worker, they fail as the pool is closed.
+        idle.addAll(stopping);
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // The JVM is already shutting down.
+        }
+    }
+
+    private static class Response {
+        private final boolean ok;
+        private final byte[] body;
+
+        private Response(boolean ok, byte[] body) {
+            this.ok = ok;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Running process of a worker with the requests waiting for its responses.
+     */
+    private static class Connection {
+        private final Process process;
+        private final OutputStream stdin;
+        private final Map<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+
+        private Connection(Process process) {
+            this.process = process;
+            this.stdin = new BufferedOutputStream(process.getOutputStream());
+        }
+    }
+
+    private class Worker {
+        private final int number;
+        private volatile Connection connection;
+        private long lastUsed;
+
+        private Worker(int number) {
+            this.number = number;
+        }
+
+        /**
+         * Synchronized with {@link #destroy}, so that no process outlives the pool.
+         */
+        private synchronized Connection start() throws IOException {
+            if (closed) throw closedException();
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            if (directory != null) processBuilder.directory(directory);
+            processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Connection started = new Connection(processBuilder.start());
+            Thread reader = new Thread(() -> readResponses(started),
+                    "conservation-worker-" + number);
+            reader.setDaemon(true);
+            reader.start();
+            logger.info("Started conservation worker {}", number);
+            connection = started;
+            return started;
+        }
+
+        private Response send(String header, long id, byte[] body, long timeoutMillis)
+                throws IOException, InterruptedException, TimeoutException {
+            Connection c = connection != null ? connection : start();
+            CompletableFuture<Response> response = new CompletableFuture<>();
+            c.pending.put(id, response);
+            try {
+                writeHeader(c.stdin, header);
+                if (body != null) c.stdin.write(body);
+                c.stdin.flush();
+                return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+            } finally {
+                c.pending.remove(id);
+                lastUsed = System.nanoTime();
+            }
+        }
+
+        private void readResponses(Connection c) {
+            InputStream in = new BufferedInputStream(c.process.getInputStream());
+            try {
+                String header;
+                while ((header = readHeader(in)) != null) {
+                    String[] tokens = header.split(" ");
+                    long id = Long.parseLong(tokens[1]);
+                    Response response;
+                    if ("PONG".equals(tokens[0])) {
+                        response = new Response(true, null);
+                    } else if ("OK".equals(tokens[0]) || "ERR".equals(tokens[0])) {
+                        byte[] body = readBody(in, Integer.parseInt(tokens[2]));
+                        response = new Response("OK".equals(tokens[0]), body);
+                    } else {
+                        throw new IOException("Unknown response: " + header);
+                    }
+                    CompletableFuture<Response> future = c.pending.get(id);
+                    if (future != null) future.complete(response);
+                }
+                fail(c, new EOFException(
+                        String.format("Conservation worker %d exited", number)));
+            } catch (IOException | RuntimeException e) {
+                fail(c, new IOException(String.format(
+                        "Conservation worker %d broke the protocol: %s", number, e), e));
+            }
+        }
+
+        private void fail(Connection c, IOException error) {
+            c.process.destroy();
+            c.pending.values().forEach(future -> future.completeExceptionally(error));
+        }
+
+        private void stop() {
+            Connection c = connection;
+            if (c == null) return;
+            try {
+                c.stdin.close();
+                c.process.waitFor(1, TimeUnit.SECONDS);
+            } catch (IOException e) {
+                // Killed by destroy.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void destroy() {
+            Connection c = connection;
+            connection = null;
+            if (c != null) c.process.destroyForcibly();
+        }
+    }
+
+    static void writeHeader(OutputStream out, String header) throws IOException {
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write('\n');
+    }
+
+    /**
+     * @return the header line without the line break, null at the end of the stream
+     */
+    static String readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) return null;
+                throw new EOFException("Truncated header");
+            }
+            if (line.size() >= MAX_HEADER_LENGTH) throw new IOException("Header too long");
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    static byte[] readBody(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) throw new EOFException("Truncated body");
+            read += n;
+        }
+        return body;
+    }
+}
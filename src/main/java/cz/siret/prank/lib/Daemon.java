@@ -0,0 +1,432 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cz.siret.prank.lib.utils.BatchExecutor;
+
+/**
+ * Long-running server mode of {@link Main}, the commands run as concurrent jobs in one JVM
+ * so they share loaded classes, JIT-compiled code and the caches of the library.
+ *
+ * The requests are read either from stdin (responses go to stdout, anything else printed
+ * to System.out is moved to stderr) or from connections to a TCP port on the loopback
+ * interface (Java 8 has no Unix domain sockets). As any local user can connect to the port,
+ * the daemon writes a random token to a file readable only by its owner (see
+ * {@link #tokenFile}) and every connection has to send the token as its first line, other
+ * connections are closed. The protocol is line based in UTF-8:
+ * <pre>
+ * request:  id TAB arg0 TAB arg1 ...       (the arguments of Main, see {@link #escape})
+ * response: id TAB out TAB line            (a line of the standard output of the job)
+ *           id TAB err TAB line            (a line of its error output)
+ *           id TAB exit TAB code           (the job is finished)
+ * </pre>
+ * Responses of concurrent jobs are interleaved, every line is tagged by the id of its
+ * request. Besides the commands of Main the daemon answers "ping" and stops after
+ * "shutdown", running jobs are finished first. {@link DaemonClient} runs a single command
+ * through a daemon with the same arguments as Main.
+ *
+ * Conservation worker pools are shared by all jobs (one pool per worker command), so the
+ * workers are started once per daemon and stopped when it stops.
+ */
+public class Daemon implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(Daemon.class);
+
+    public static final String PORT_PROPERTY = "prank.daemon.port";
+    public static final int DEFAULT_PORT = 7790;
+    public static final String TOKEN_FILE_PROPERTY = "prank.daemon.token";
+    private static final int TOKEN_BYTES = 32;
+    private static final int AUTHENTICATION_TIMEOUT_MILLIS = 10000;
+
+    private final ExecutorService executor;
+    private final Map<List<Object>, ConservationWorkerPool> workerPools = new HashMap<>();
+    private volatile boolean shutdown = false;
+    private volatile ServerSocket serverSocket;
+
+    public Daemon(int threads) {
+        int n = threads > 0 ? threads : BatchExecutor.defaultThreads();
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "daemon-job-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Serves requests from stdin, or from the TCP port if it is not negative, until
+     * shutdown.
+     */
+    public static void start(int port, int threads) throws IOException {
+        try (Daemon daemon = new Daemon(threads)) {
+            if (port < 0) {
+                PrintStream stdout = System.out;
+                // Keep stray prints of the library out of the protocol.
+                System.setOut(System.err);
+                daemon.serve(System.in, stdout);
+            } else {
+                daemon.listen(port);
+            }
+        }
+    }
+
+    /**
+     * @return file with the authentication token of the daemon on the port, given by the
+     * prank.daemon.token system property, ~/.prank-daemon-port.token by default
+     */
+    public static Path tokenFile(int port) {
+        String file = System.getProperty(TOKEN_FILE_PROPERTY);
+        return file != null ? Paths.get(file)
+                : Paths.get(System.getProperty("user.home"), ".prank-daemon-" + port + ".token");
+    }
+
+    /**
+     * Writes a new random token to a new file with the permissions 0600.
+     */
+    private static String createToken(Path tokenFile) throws IOException {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder(2 * TOKEN_BYTES);
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        // A new file, so that nobody else can have it open or link it elsewhere.
+        Files.deleteIfExists(tokenFile);
+        try {
+            Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, restrict the access as far as possible.
+            Files.createFile(tokenFile);
+            File f = tokenFile.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        Files.write(tokenFile, (token + "\n").getBytes(StandardCharsets.US_ASCII));
+        return token.toString();
+    }
+
+    /**
+     * Accepts connections on the loopback interface that send the token of the daemon as
+     * their first line, each one can send any number of requests.
+     */
+    public void listen(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            serverSocket = server;
+            // The token file is named by the requested port, which is 0 for a random one.
+            Path tokenFile = tokenFile(port);
+            byte[] token = createToken(tokenFile).getBytes(StandardCharsets.US_ASCII);
+            logger.info("Daemon listening on {}, token in {}", server.getLocalSocketAddress(),
+                    tokenFile);
+            try {
+                accept(server, token);
+            } finally {
+                Files.deleteIfExists(tokenFile);
+            }
+        }
+    }
+
+    private void accept(ServerSocket server, byte[] token) throws IOException {
+        while (!shutdown) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketException e) {
+                if (shutdown) break;
+                throw e;
+            }
+            Thread t = new Thread(() -> {
+                try (Socket s = socket) {
+                    InputStream in = s.getInputStream();
+                    s.setSoTimeout(AUTHENTICATION_TIMEOUT_MILLIS);
+                    if (!authenticate(in, token)) {
+                        logger.warn("Daemon connection from {} sent a wrong token",
+                                s.getRemoteSocketAddress());
+                        return;
+                    }
+                    s.setSoTimeout(0);
+                    serve(in, s.getOutputStream());
+                } catch (IOException e) {
+                    logger.warn("Daemon connection failed", e);
+                }
+            }, "daemon-connection");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Reads the first line of the connection byte by byte, so that nothing else is
+     * consumed, and compares it to the token in constant time.
+     */
+    private static boolean authenticate(InputStream in, byte[] token) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(token.length);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0 || line.size() > token.length) return false;
+            line.write(b);
+        }
+        return MessageDigest.isEqual(line.toByteArray(), token);
+    }
+
+    /**
+     * Reads requests until the end of the input or shutdown and waits for their jobs.
+     */
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        ResponseWriter writer = new ResponseWriter(out);
+        List<Future<?>> jobs = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while (!shutdown && (line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t", -1);
+            String id = fields[0];
+            String[] args = new String[fields.length - 1];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = unescape(fields[i + 1]);
+            }
+            jobs.removeIf(Future::isDone);
+            if (args.length == 0 || args[0].equalsIgnoreCase("ping")) {
+                writer.exit(id, 0);
+            } else if (args[0].equalsIgnoreCase("shutdown")) {
+                shutdown();
+                writer.exit(id, 0);
+            } else if (args[0].equalsIgnoreCase("daemon")) {
+                writer.line(id, "err", "The daemon cannot be started from a daemon job.");
+                writer.exit(id, 2);
+            } else {
+                jobs.add(executor.submit(() -> runJob(id, args, writer)));
+            }
+        }
+        for (Future<?> job : jobs) {
+            try {
+                job.get();
+            } catch (ExecutionException e) {
+                logger.error("Daemon job failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private void runJob(String id, String[] args, ResponseWriter writer) {
+        long start = System.nanoTime();
+        JobOutput out = new JobOutput(writer, id, "out");
+        JobOutput err = new JobOutput(writer, id, "err");
+        int exitCode;
+        try (PrintStream outStream = new PrintStream(out, true, "UTF-8");
+             PrintStream errStream = new PrintStream(err, true, "UTF-8")) {
+            try {
+                exitCode = Main.run(args, outStream, errStream, this::workerPool);
+            } catch (Throwable e) {
+                // Failed job, e.g. missing arguments, must not take the daemon down.
+                e.printStackTrace(errStream);
+                exitCode = 1;
+            }
+        } catch (IOException e) {
+            exitCode = 1;
+        }
+        try {
+            writer.exit(id, exitCode);
+        } catch (IOException e) {
+            logger.warn("Could not send the result of job {}", id, e);
+        }
+        logger.info("Job {} {} finished with {} in {} ms", id, args[0], exitCode,
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * @return the pool of the daemon started by the command, created on its first use
+     */
+    private synchronized ConservationWorkerPool workerPool(List<String> command, File directory,
+                                                           int size, long timeoutMillis) {
+        List<Object> key = Arrays.asList(command, directory, size, timeoutMillis);
+        ConservationWorkerPool pool = workerPools.get(key);
+        if (pool == null) {
+            pool = new ConservationWorkerPool(command, directory, size);
+            pool.setTimeoutMillis(timeoutMillis);
+            workerPools.put(key, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Stops reading new requests, jobs that are already running are finished.
+     */
+    public void shutdown() {
+        shutdown = true;
+        ServerSocket server = serverSocket;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                logger.warn("Could not close the daemon socket", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            workerPools.values().forEach(ConservationWorkerPool::close);
+            workerPools.clear();
+        }
+    }
+
+    /**
+     * Escapes backslashes, tabs and line breaks of a request argument.
+     */
+    public static String escape(String arg) {
+        StringBuilder sb = new StringBuilder(arg.length());
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static String unescape(String arg) {
+        if (arg.indexOf('\\') < 0) return arg;
+        StringBuilder sb = new StringBuilder(arg.length());
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            if (c == '\\' && i + 1 < arg.length()) {
+                c = arg.charAt(++i);
+                sb.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes whole response lines of all jobs of one connection.
+     */
+    private static class ResponseWriter {
+        private final OutputStream out;
+
+        ResponseWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        synchronized void line(String id, String stream, byte[] line, int off, int len)
+                throws IOException {
+            out.write((id + "\t" + stream + "\t").getBytes(StandardCharsets.UTF_8));
+            out.write(line, off, len);
+            out.write('\n');
+            out.flush();
+        }
+
+        void line(String id, String stream, String line) throws IOException {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            line(id, stream, bytes, 0, bytes.length);
+        }
+
+        void exit(String id, int exitCode) throws IOException {
+            line(id, "exit", Integer.toString(exitCode));
+        }
+    }
+
+    /**
+     * Output of a job, sends every complete line as a response.
+     */
+    private static class JobOutput extends OutputStream {
+        private final ResponseWriter writer;
+        private final String id;
+        private final String stream;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        JobOutput(ResponseWriter writer, String id, String stream) {
+            this.writer = writer;
+            this.id = id;
+            this.stream = stream;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                sendLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                if (b[i] == '\n') {
+                    line.write(b, off, i - off);
+                    sendLine();
+                    off = i + 1;
+                }
+            }
+            line.write(b, off, end - off);
+        }
+
+        private void sendLine() throws IOException {
+            byte[] bytes = line.toByteArray();
+            int len = bytes.length;
+            if (len > 0 && bytes[len - 1] == '\r') len--;
+            writer.line(id, stream, bytes, 0, len);
+            line.reset();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (line.size() > 0) {
+                sendLine();
+            }
+        }
+    }
+}
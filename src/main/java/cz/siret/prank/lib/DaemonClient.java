@@ -0,0 +1,91 @@
+package cz.siret.prank.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Thin client running one command of {@link Main} in a {@link Daemon} listening on the
+ * loopback interface, it takes the same arguments as Main and exits with the exit code
+ * of the job. The port is given by the prank.daemon.port system property, the client
+ * authenticates by the token the daemon wrote to {@link Daemon#tokenFile}.
+ *
+ * Relative paths of existing files are made absolute, as the daemon may run in another
+ * working directory. If no daemon is running, the command is run in this JVM.
+ */
+public class DaemonClient {
+
+    public static void main(String[] args) {
+        int port = Integer.getInteger(Daemon.PORT_PROPERTY, Daemon.DEFAULT_PORT);
+        int exitCode;
+        try {
+            exitCode = run(port, args, System.out, System.err);
+        } catch (ConnectException e) {
+            exitCode = Main.run(args, System.out, System.err);
+        } catch (IOException e) {
+            e.printStackTrace();
+            exitCode = 1;
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Sends the command to the daemon and copies its output to the streams.
+     *
+     * @return exit code of the command
+     * @throws ConnectException if there is no daemon listening on the port or its token
+     *                          file does not exist
+     */
+    public static int run(int port, String[] args, PrintStream out, PrintStream err)
+            throws IOException {
+        Path tokenFile = Daemon.tokenFile(port);
+        if (!Files.isRegularFile(tokenFile)) {
+            throw new ConnectException("No daemon token in " + tokenFile);
+        }
+        String token = new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII)
+                .trim();
+        StringBuilder request = new StringBuilder(token).append("\n1");
+        for (String arg : args) {
+            File file = new File(arg);
+            if (!file.isAbsolute() && file.exists()) {
+                arg = file.getAbsolutePath();
+            }
+            request.append('\t').append(Daemon.escape(arg));
+        }
+        request.append('\n');
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream requestStream = socket.getOutputStream();
+            requestStream.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            requestStream.flush();
+            socket.shutdownOutput();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length < 3) continue;
+                switch (fields[1]) {
+                    case "out":
+                        out.println(fields[2]);
+                        break;
+                    case "err":
+                        err.println(fields[2]);
+                        break;
+                    case "exit":
+                        out.flush();
+                        return Integer.parseInt(fields[2]);
+                }
+            }
+        }
+        throw new IOException("Daemon closed the connection before the job finished");
+    }
+}
@@ -1,31 +1,60 @@
 package cz.siret.prank.lib;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.biojava.nbio.structure.Structure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.Metrics;
 import cz.siret.prank.lib.utils.Tuple;
 import cz.siret.prank.lib.utils.Tuple2;
 import cz.siret.prank.lib.utils.Utils;
 
-public class ExternalTools {
+public class ExternalTools implements AutoCloseable {
     private final transient Logger logger = LoggerFactory.getLogger(getClass());
 
     private String hsspToFastaScript;
     private String msaToConservationScript;
     private Path hsspDir;
+    private int conservationThreads = Runtime.getRuntime().availableProcessors();
+    private boolean nativeConservation = false;
+    private boolean nativeHssp = false;
+    private int conservationWorkers = 0;
+    private List<String> conservationWorkerCommand;
+    private long conservationTimeoutMillis = ConservationWorkerPool.DEFAULT_TIMEOUT_MILLIS;
+    private ConservationWorkerPool workerPool;
+    private WorkerPoolProvider workerPoolProvider;
+    /** Repositories opened so far by hsspDir, shared by all instances (and daemon jobs). */
+    private static final Map<Path, CachedHsspRepository> hsspRepositories = new HashMap<>();
 
     public ExternalTools(String hsspToFastaScript, String msaToConservationScript, String hsspDir) {
         this.hsspToFastaScript = hsspToFastaScript;
@@ -35,83 +64,639 @@ public class ExternalTools {
 
     public Map<String, File> getMSAsfromHSSP(String pdbId) throws IOException,
             InterruptedException {
+        HsspInput input = fetchHssp(pdbId);
+        if (input.alignments != null) {
+            return writeMSAs(input.alignments);
+        }
+        return runHsspToFasta(input);
+    }
+
+    /**
+     * HSSP entry read ahead of the MSA extraction: the alignments in the native mode,
+     * otherwise the decompressed file in a temporary directory for the hssp to fasta script.
+     */
+    private static class HsspInput {
+        private final String pdbId;
+        private final Map<String, JsdConservation.Alignment> alignments;
+        private final Path tempHsspDir;
+
+        private HsspInput(String pdbId, Map<String, JsdConservation.Alignment> alignments,
+                          Path tempHsspDir) {
+            this.pdbId = pdbId;
+            this.alignments = alignments;
+            this.tempHsspDir = tempHsspDir;
+        }
+    }
+
+    /**
+     * Reads the HSSP entry, the I/O part of {@link #getMSAsfromHSSP(String)}.
+     */
+    private HsspInput fetchHssp(String pdbId) throws IOException {
+        if (nativeHssp) {
+            return new HsspInput(pdbId.toLowerCase(), getAlignmentsFromHSSP(pdbId), null);
+        }
         pdbId = pdbId.toLowerCase();
         // Check if the script even exists
         logger.info("Getting MSA from HSSP for PDB: {}", pdbId);
+        if (hsspToFastaScript == null || hsspDir == null
+                || !new File(hsspToFastaScript).exists() || !hsspDir.toFile().exists()) {
+            return new HsspInput(pdbId, null, null);
+        }
+        // Decompress HSSP files first
+        InputStream hssp = openHssp(pdbId);
+        if (hssp == null) return new HsspInput(pdbId, null, null);
+        Path tempHsspDir = Files.createTempDirectory(pdbId.concat("_hssp"));
+        long start = Metrics.INSTANCE.start();
+        try (InputStream in = hssp) {
+            long bytes = Files.copy(in, tempHsspDir.resolve(pdbId.concat(".hssp")),
+                    StandardCopyOption.REPLACE_EXISTING);
+            Metrics.INSTANCE.record(Metrics.HSSP_READ, null, start, bytes);
+        } catch (IOException e) {
+            Utils.INSTANCE.deleteDirRecursively(tempHsspDir);
+            throw e;
+        }
+        return new HsspInput(pdbId, null, tempHsspDir);
+    }
+
+    /**
+     * Runs the hssp to fasta script on the fetched entry and deletes its temporary directory.
+     */
+    private Map<String, File> runHsspToFasta(HsspInput input) throws IOException,
+            InterruptedException {
         Map<String, File> result = new HashMap<>();
-        if (hsspToFastaScript != null && hsspDir != null) {
+        if (input.tempHsspDir == null) return result;
+        String pdbId = input.pdbId;
+        Path tempHsspDir = input.tempHsspDir;
+        Path tempFastaDir = null;
+        try {
+            tempFastaDir = Files.createTempDirectory(pdbId.concat("_fasta"));
             File scriptFile = new File(hsspToFastaScript);
-            if (scriptFile.exists() && hsspDir.toFile().exists()) {
-                // Decompress HSSP files first
-                File hsspFile = hsspDir.resolve(pdbId.concat(".hssp.bz2")).toFile();
-                logger.info("Looking for {}", hsspFile.getAbsolutePath());
-                if (!hsspFile.exists()) return result;
-                Path tempHsspDir = Files.createTempDirectory(pdbId.concat("_hssp"));
-                Path tempFastaDir = Files.createTempDirectory(pdbId.concat("_fasta"));
-                try (InputStream in = new BZip2CompressorInputStream(
-                        new FileInputStream(hsspFile))) {
-                    Files.copy(in, tempHsspDir.resolve(pdbId.concat(".hssp")),
-                            StandardCopyOption.REPLACE_EXISTING);
-                }
+            logger.info("Converting hssp->fasta :{}", pdbId);
+            ProcessBuilder processBuilder = new ProcessBuilder(scriptFile.getAbsolutePath(),
+                    pdbId, tempHsspDir.toAbsolutePath().toString(),
+                    tempFastaDir.toAbsolutePath().toString());
+            processBuilder.directory(scriptFile.getParentFile());
+            long start = Metrics.INSTANCE.start();
+            Process process = processBuilder.start();
+            int exitCode = process.waitFor();
+            logger.info("Hssp2Fasta script finished with exit code: {}", exitCode);
 
-                logger.info("Converting hssp->fasta :{}", hsspFile.getName());
-                ProcessBuilder processBuilder = new ProcessBuilder(scriptFile.getAbsolutePath(),
-                        pdbId, tempHsspDir.toAbsolutePath().toString(),
-                        tempFastaDir.toAbsolutePath().toString());
-                processBuilder.directory(scriptFile.getParentFile());
-                Process process = processBuilder.start();
-                int exitCode = process.waitFor();
-                logger.info("Hssp2Fasta script finished with exit code: {}", exitCode);
-
-                File[] files = tempFastaDir.toFile().listFiles();
-                for (File f : files) {
-                    String name = f.getName();
-                    String chainId = name.substring(pdbId.length(),
-                            name.length() - ".hssp.fasta".length());
-                    File tempFile = File.createTempFile("msa", ".fasta");
-                    Files.move(f.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                    logger.info("Chain: {}, file: {}", chainId, tempFile.getAbsolutePath());
-                    result.put(chainId, tempFile);
-                }
-                Utils.INSTANCE.deleteDirRecursively(tempHsspDir);
+            File[] files = tempFastaDir.toFile().listFiles();
+            if (exitCode == 0) {
+                long bytes = 0;
+                for (File f : files) bytes += f.length();
+                Metrics.INSTANCE.record(Metrics.HSSP_TO_FASTA, null, start, bytes);
+            } else {
+                Metrics.INSTANCE.recordError(Metrics.HSSP_TO_FASTA, null, start);
+            }
+            for (File f : files) {
+                String name = f.getName();
+                String chainId = name.substring(pdbId.length(),
+                        name.length() - ".hssp.fasta".length());
+                File tempFile = File.createTempFile("msa", ".fasta");
+                Files.move(f.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                logger.info("Chain: {}, file: {}", chainId, tempFile.getAbsolutePath());
+                result.put(chainId, tempFile);
+            }
+        } finally {
+            Utils.INSTANCE.deleteDirRecursively(tempHsspDir);
+            if (tempFastaDir != null) {
                 Utils.INSTANCE.deleteDirRecursively(tempFastaDir);
             }
         }
         return result;
     }
 
+    /**
+     * Reads the per-chain MSAs of the HSSP entry in-process, streaming from the compressed
+     * file without any temporary files.
+     *
+     * @return map from chain ids to alignments, empty if the entry does not exist
+     */
+    public Map<String, JsdConservation.Alignment> getAlignmentsFromHSSP(String pdbId)
+            throws IOException {
+        pdbId = pdbId.toLowerCase();
+        logger.info("Getting MSA from HSSP for PDB: {}", pdbId);
+        InputStream hssp = openHssp(pdbId);
+        if (hssp == null) return new HashMap<>();
+        try (InputStream in = Metrics.INSTANCE.countBytes(hssp, Metrics.HSSP_READ, null)) {
+            return HsspReader.read(in, pdbId).getChains();
+        }
+    }
+
+    /**
+     * Opens the HSSP file of the entry, from the repacked repository if hsspDir has one
+     * (see {@link HsspRepository}) or from the plain pdbId.hssp.bz2 file.
+     *
+     * @return decompressed HSSP file, null if the entry does not exist
+     */
+    private InputStream openHssp(String pdbId) throws IOException {
+        if (hsspDir == null) return null;
+        CachedHsspRepository repository = acquireHsspRepository();
+        try {
+            InputStream in = repository.repository != null
+                    ? repository.repository.openEntry(pdbId) : null;
+            if (in != null) return in;
+        } finally {
+            releaseHsspRepository(repository);
+        }
+        File hsspFile = hsspDir.resolve(pdbId.concat(".hssp.bz2")).toFile();
+        logger.info("Looking for {}", hsspFile.getAbsolutePath());
+        if (!hsspFile.exists()) return null;
+        return Utils.INSTANCE.readFile(hsspFile);
+    }
+
+    /**
+     * @return the cached repository of hsspDir, reopened if its index file changed (e.g. by
+     * repackhssp), must be released after use
+     */
+    private CachedHsspRepository acquireHsspRepository() throws IOException {
+        Path dir = hsspDir.toAbsolutePath().normalize();
+        Object stamp = indexStamp(dir);
+        synchronized (hsspRepositories) {
+            CachedHsspRepository cached = hsspRepositories.get(dir);
+            if (cached == null || !Objects.equals(cached.stamp, stamp)) {
+                if (cached != null) {
+                    hsspRepositories.remove(dir);
+                    cached.evicted = true;
+                    closeIfUnused(cached);
+                }
+                cached = new CachedHsspRepository(stamp,
+                        stamp != null ? HsspRepository.open(dir) : null);
+                hsspRepositories.put(dir, cached);
+                if (cached.repository != null) {
+                    logger.info("Using HSSP repository with {} entries in {}",
+                            cached.repository.size(), dir);
+                }
+            }
+            cached.users++;
+            return cached;
+        }
+    }
+
+    private void releaseHsspRepository(CachedHsspRepository cached) {
+        synchronized (hsspRepositories) {
+            cached.users--;
+            closeIfUnused(cached);
+        }
+    }
+
+    private void closeIfUnused(CachedHsspRepository cached) {
+        if (!cached.evicted || cached.users > 0 || cached.repository == null) return;
+        try {
+            cached.repository.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the HSSP repository", e);
+        }
+    }
+
+    /**
+     * @return identity, modification time and size of the index file of the repository in
+     * the directory, null if there is none
+     */
+    private static Object indexStamp(Path dir) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(
+                    dir.resolve(HsspRepository.INDEX_FILE), BasicFileAttributes.class);
+            return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(),
+                    attributes.size());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Repository opened for a version of its index file, null repository if there was no
+     * index. It is closed once evicted and no longer used.
+     */
+    private static class CachedHsspRepository {
+        private final Object stamp;
+        private final HsspRepository repository;
+        private int users = 0;
+        private boolean evicted = false;
+
+        private CachedHsspRepository(Object stamp, HsspRepository repository) {
+            this.stamp = stamp;
+            this.repository = repository;
+        }
+    }
+
+    /**
+     * Writes every alignment into its own temporary FASTA file.
+     */
+    private Map<String, File> writeMSAs(Map<String, JsdConservation.Alignment> alignments)
+            throws IOException {
+        Map<String, File> result = new HashMap<>();
+        for (Map.Entry<String, JsdConservation.Alignment> alignment : alignments.entrySet()) {
+            result.put(alignment.getKey(), writeMSA(alignment.getKey(), alignment.getValue()));
+        }
+        return result;
+    }
+
+    private File writeMSA(String chainId, JsdConservation.Alignment alignment)
+            throws IOException {
+        File tempFile = File.createTempFile("msa", ".fasta");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tempFile), StandardCharsets.US_ASCII))) {
+            alignment.writeFasta(writer);
+        }
+        logger.info("Chain: {}, file: {}", chainId, tempFile.getAbsolutePath());
+        return tempFile;
+    }
+
+    public boolean isNativeHssp() {
+        return nativeHssp;
+    }
+
+    /**
+     * @param nativeHssp Read the HSSP files by {@link HsspReader} instead of running the
+     *                   hssp to fasta script
+     */
+    public void setNativeHssp(boolean nativeHssp) {
+        this.nativeHssp = nativeHssp;
+    }
+
+    /**
+     * Outcome of the conservation script for one chain.
+     */
+    public static class ChainJob {
+        private final String chainId;
+        private final File msaFile;
+        private File scoreFile;
+        private int exitCode = -1;
+        private long durationMillis;
+        private Exception error;
+
+        private ChainJob(String chainId, File msaFile) {
+            this.chainId = chainId;
+            this.msaFile = msaFile;
+        }
+
+        public String getChainId() {
+            return chainId;
+        }
+
+        public File getMsaFile() {
+            return msaFile;
+        }
+
+        public File getScoreFile() {
+            return scoreFile;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isOk() {
+            return error == null && exitCode == 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: exit code %d, %d ms%s", chainId, exitCode, durationMillis,
+                    error != null ? ", " + error : "");
+        }
+    }
+
+    /**
+     * Score files of the chains for which the conservation script succeeded, together with
+     * the jobs of all chains (including the failed ones).
+     */
+    public static class ConservationResult {
+        private final Map<String, File> scoreFiles;
+        private final Map<String, ChainJob> jobs;
+
+        private ConservationResult(Map<String, File> scoreFiles, Map<String, ChainJob> jobs) {
+            this.scoreFiles = scoreFiles;
+            this.jobs = jobs;
+        }
+
+        public Map<String, File> getScoreFiles() {
+            return scoreFiles;
+        }
+
+        public Map<String, ChainJob> getJobs() {
+            return jobs;
+        }
+
+        public boolean hasFailures() {
+            return jobs.values().stream().anyMatch(job -> !job.isOk());
+        }
+    }
+
+    public boolean isNativeConservation() {
+        return nativeConservation;
+    }
+
+    /**
+     * @param nativeConservation Compute the conservation by {@link JsdConservation} instead of
+     *                           running the conservation script
+     */
+    public void setNativeConservation(boolean nativeConservation) {
+        this.nativeConservation = nativeConservation;
+    }
+
+    public int getConservationThreads() {
+        return conservationThreads;
+    }
+
+    /**
+     * @param conservationThreads Maximum number of conservation scripts running at once
+     */
+    public void setConservationThreads(int conservationThreads) {
+        this.conservationThreads = conservationThreads > 0 ? conservationThreads : 1;
+    }
 
     public Map<String, File> getConservationFromMSAs(Map<String, File> msas) throws IOException,
             InterruptedException {
+        return computeConservationFromMSAs(msas).getScoreFiles();
+    }
+
+    /**
+     * Runs the conservation script (or {@link JsdConservation} in the native mode, or the
+     * {@link ConservationWorkerPool} workers) for all chains, at most
+     * {@link #getConservationThreads()} of them at once.
+     */
+    public ConservationResult computeConservationFromMSAs(Map<String, File> msas)
+            throws IOException, InterruptedException {
+        Map<String, File> scoreFiles = new HashMap<>();
+        Map<String, ChainJob> jobs = new LinkedHashMap<>();
+        if (msas.isEmpty() || !canComputeConservation()) {
+            return new ConservationResult(scoreFiles, jobs);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(conservationThreads, msas.size()));
+        try {
+            List<Future<ChainJob>> futures = new ArrayList<>(msas.size());
+            for (Map.Entry<String, File> msa : msas.entrySet()) {
+                ChainJob job = new ChainJob(msa.getKey(), msa.getValue());
+                jobs.put(job.getChainId(), job);
+                futures.add(executor.submit(() -> runConservation(job)));
+            }
+            for (Future<ChainJob> future : futures) {
+                try {
+                    ChainJob job = future.get();
+                    logger.info("Conservation for chain {}", job);
+                    if (job.isOk()) {
+                        scoreFiles.put(job.getChainId(), job.getScoreFile());
+                    }
+                } catch (ExecutionException e) {
+                    // The jobs record their exceptions.
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new ConservationResult(scoreFiles, jobs);
+    }
+
+    private boolean canComputeConservation() {
+        return nativeConservation || getConservationWorkerCommand() != null
+                || conservationScriptExists();
+    }
+
+    private boolean conservationScriptExists() {
         // Check if the script even exists
-        Map<String, File> result = new HashMap<>();
-        if (msaToConservationScript != null) {
-            File scriptFile = new File(msaToConservationScript);
-            if (scriptFile.exists()) {
-                for (Map.Entry<String, File> msa : msas.entrySet()) {
-                    logger.info("Calculating conservation for chain: {}", msa.getKey());
-                    ProcessBuilder processBuilder = new ProcessBuilder(scriptFile.getAbsolutePath(),
-                            msa.getValue().getAbsolutePath());
-                    processBuilder.directory(scriptFile.getParentFile());
-                    String newName = msa.getValue().getName().replaceFirst(".fasta$", ".hom");
-                    Path resultFile = Paths.get(msa.getValue().getParent(), newName);
-                    processBuilder.redirectOutput(resultFile.toFile());
-                    Process process = processBuilder.start();
-                    int exitCode = process.waitFor();
-                    logger.info("JSD script finished with exit code: {}", exitCode);
-                    result.put(msa.getKey(), resultFile.toFile());
+        return msaToConservationScript != null && new File(msaToConservationScript).exists();
+    }
+
+    private ChainJob runConservation(ChainJob job) {
+        if (nativeConservation) {
+            return runNativeConservation(job);
+        }
+        if (getConservationWorkerCommand() != null) {
+            return runWorkerConservation(job);
+        }
+        return runConservationScript(new File(msaToConservationScript), job);
+    }
+
+    public int getConservationWorkers() {
+        return conservationWorkers;
+    }
+
+    /**
+     * @param conservationWorkers Number of long-lived conservation workers, see
+     *                            {@link ConservationWorkerPool}, 0 to run the conservation
+     *                            script for every chain
+     */
+    public void setConservationWorkers(int conservationWorkers) {
+        this.conservationWorkers = Math.max(conservationWorkers, 0);
+    }
+
+    /**
+     * @param conservationWorkerCommand Command starting a worker, by default the
+     *                                  conservation script with the --worker argument
+     */
+    public void setConservationWorkerCommand(List<String> conservationWorkerCommand) {
+        this.conservationWorkerCommand = conservationWorkerCommand;
+    }
+
+    /**
+     * @return command starting a conservation worker, null if the worker mode is off
+     */
+    public List<String> getConservationWorkerCommand() {
+        if (conservationWorkers <= 0) return null;
+        if (conservationWorkerCommand != null) return conservationWorkerCommand;
+        if (!conservationScriptExists()) return null;
+        return Arrays.asList(new File(msaToConservationScript).getAbsolutePath(), "--worker");
+    }
+
+    public long getConservationTimeoutMillis() {
+        return conservationTimeoutMillis;
+    }
+
+    /**
+     * @param conservationTimeoutMillis Maximum time a conservation worker may take for a chain
+     */
+    public void setConservationTimeoutMillis(long conservationTimeoutMillis) {
+        this.conservationTimeoutMillis = conservationTimeoutMillis;
+    }
+
+    /**
+     * Pools of conservation workers outliving this instance, e.g. of a {@link Daemon}.
+     */
+    public interface WorkerPoolProvider {
+        /**
+         * @return pool of the workers started by the command, owned by the provider
+         */
+        ConservationWorkerPool get(List<String> command, File directory, int size,
+                                   long timeoutMillis);
+    }
+
+    /**
+     * @param workerPoolProvider Provider of the conservation worker pool, null to start the
+     *                           workers for this instance and stop them on {@link #close}
+     */
+    public void setWorkerPoolProvider(WorkerPoolProvider workerPoolProvider) {
+        this.workerPoolProvider = workerPoolProvider;
+    }
+
+    private ConservationWorkerPool getWorkerPool() {
+        synchronized (this) {
+            if (workerPool == null) {
+                File script = msaToConservationScript != null
+                        ? new File(msaToConservationScript).getAbsoluteFile() : null;
+                File directory = conservationWorkerCommand == null ? script.getParentFile() : null;
+                if (workerPoolProvider != null) {
+                    return workerPoolProvider.get(getConservationWorkerCommand(), directory,
+                            conservationWorkers, conservationTimeoutMillis);
+                }
+                workerPool = new ConservationWorkerPool(getConservationWorkerCommand(),
+                        directory, conservationWorkers);
+                workerPool.setTimeoutMillis(conservationTimeoutMillis);
+            }
+            return workerPool;
+        }
+    }
+
+    private ChainJob runWorkerConservation(ChainJob job) {
+        long start = System.nanoTime();
+        logger.info("Calculating conservation for chain: {}", job.getChainId());
+        String newName = job.getMsaFile().getName().replaceFirst(".fasta$", ".hom");
+        job.scoreFile = Paths.get(job.getMsaFile().getParent(), newName).toFile();
+        try {
+            Files.write(job.getScoreFile().toPath(), getWorkerPool().compute(job.getMsaFile()));
+            job.exitCode = 0;
+        } catch (IOException e) {
+            job.error = e;
+        } catch (InterruptedException e) {
+            job.error = e;
+            Thread.currentThread().interrupt();
+        }
+        job.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        recordConservation(job, start);
+        return job;
+    }
+
+    /**
+     * Stops the conservation workers, if any were started by this instance.
+     */
+    @Override
+    public void close() {
+        ConservationWorkerPool pool;
+        synchronized (this) {
+            pool = workerPool;
+            workerPool = null;
+        }
+        if (pool != null) pool.close();
+    }
+
+    private ChainJob runNativeConservation(ChainJob job) {
+        long start = System.nanoTime();
+        logger.info("Calculating conservation for chain: {}", job.getChainId());
+        String newName = job.getMsaFile().getName().replaceFirst(".fasta$", ".hom");
+        job.scoreFile = Paths.get(job.getMsaFile().getParent(), newName).toFile();
+        try {
+            JsdConservation.compute(job.getMsaFile()).writeHomFile(job.getScoreFile());
+            job.exitCode = 0;
+        } catch (IOException | RuntimeException e) {
+            job.error = e;
+        }
+        job.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        recordConservation(job, start);
+        return job;
+    }
+
+    /**
+     * Computes the conservation of all chains in-process, without writing any files.
+     *
+     * @return map from chain ids to the scores of their MSA columns
+     */
+    public Map<String, JsdConservation.Scores> computeConservationScores(Map<String, File> msas)
+            throws IOException, InterruptedException {
+        Map<String, JsdConservation.Scores> result = new HashMap<>();
+        if (msas.isEmpty()) return result;
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(conservationThreads, msas.size()));
+        try {
+            Map<String, Future<JsdConservation.Scores>> futures = new HashMap<>();
+            for (Map.Entry<String, File> msa : msas.entrySet()) {
+                futures.put(msa.getKey(), executor.submit(() -> {
+                    long start = Metrics.INSTANCE.start();
+                    JsdConservation.Scores scores = JsdConservation.compute(msa.getValue());
+                    Metrics.INSTANCE.record(Metrics.CONSERVATION, msa.getKey(), start,
+                            msa.getValue().length());
+                    return scores;
+                }));
+            }
+            for (Map.Entry<String, Future<JsdConservation.Scores>> f : futures.entrySet()) {
+                try {
+                    result.put(f.getKey(), f.getValue().get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
                 }
             }
+        } finally {
+            executor.shutdownNow();
         }
         return result;
     }
 
+    private ChainJob runConservationScript(File scriptFile, ChainJob job) {
+        long start = System.nanoTime();
+        logger.info("Calculating conservation for chain: {}", job.getChainId());
+        ProcessBuilder processBuilder = new ProcessBuilder(scriptFile.getAbsolutePath(),
+                job.getMsaFile().getAbsolutePath());
+        processBuilder.directory(scriptFile.getParentFile());
+        String newName = job.getMsaFile().getName().replaceFirst(".fasta$", ".hom");
+        Path resultFile = Paths.get(job.getMsaFile().getParent(), newName);
+        processBuilder.redirectOutput(resultFile.toFile());
+        job.scoreFile = resultFile.toFile();
+        Process process = null;
+        try {
+            process = processBuilder.start();
+            job.exitCode = process.waitFor();
+            logger.info("JSD script finished with exit code: {}", job.getExitCode());
+        } catch (IOException e) {
+            job.error = e;
+        } catch (InterruptedException e) {
+            job.error = e;
+            process.destroy();
+            Thread.currentThread().interrupt();
+        }
+        job.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        recordConservation(job, start);
+        return job;
+    }
+
+    private static void recordConservation(ChainJob job, long start) {
+        if (job.isOk()) {
+            Metrics.INSTANCE.record(Metrics.CONSERVATION, job.getChainId(), start,
+                    job.getMsaFile().length());
+        } else {
+            Metrics.INSTANCE.recordError(Metrics.CONSERVATION, job.getChainId(), start);
+        }
+    }
+
     public Map<String, Tuple2<File, File>> getConsevationAndMSAsFromHSSP(String pdbId,
                                                                          Structure protein)
             throws IOException, InterruptedException {
-        Map<String, Tuple2<File, File>> result = new HashMap<>();
+        long start = Metrics.INSTANCE.start();
         Map<String, File> msas = getMSAsfromHSSP(pdbId);
         Map<String, File> scores = getConservationFromMSAs(msas);
+        Map<String, Tuple2<File, File>> result = matchChains(protein, msas, scores);
+        Metrics.INSTANCE.record(Metrics.HSSP_PIPELINE, null, start, -1);
+        return result;
+    }
+
+    private Map<String, Tuple2<File, File>> matchChains(Structure protein,
+                                                        Map<String, File> msas,
+                                                        Map<String, File> scores)
+            throws IOException {
+        Map<String, Tuple2<File, File>> result = new HashMap<>();
         Map<String, String> chainMatching = ConservationScore.pickScores(protein, scores);
         for (Map.Entry<String, String> chainMatch : chainMatching.entrySet()) {
             logger.info("Chains matched. {}->{}", chainMatch.getKey(), chainMatch.getValue());
@@ -122,4 +707,178 @@ public class ExternalTools {
         return result;
     }
 
+    /**
+     * Non-blocking variant of {@link #getConsevationAndMSAsFromHSSP(String, Structure)}.
+     *
+     * The HSSP file is read and the MSAs are extracted on msaExecutor, the conservation of
+     * every chain runs on conservationExecutor as soon as its MSA is written, so the
+     * conservation of a chain overlaps with the extraction of the next one. No thread of the
+     * caller is blocked.
+     *
+     * @param msaExecutor          Executor for the I/O stages (reading HSSP, writing MSAs and
+     *                             matching the chains)
+     * @param conservationExecutor Executor for the conservation of the chains
+     */
+    public CompletableFuture<Map<String, Tuple2<File, File>>> getConservationAndMSAsFromHSSPAsync(
+            String pdbId, Structure protein, Executor msaExecutor,
+            Executor conservationExecutor) {
+        long start = Metrics.INSTANCE.start();
+        return async(() -> fetchHssp(pdbId), msaExecutor)
+                .thenCompose(input -> conservationAsync(input,
+                        CompletableFuture.completedFuture(protein), msaExecutor,
+                        conservationExecutor))
+                .whenComplete((result, error) -> recordPipeline(start, error));
+    }
+
+    /**
+     * Receives the results of {@link #getConservationAndMSAsFromHSSPBatch}. The consumer owns
+     * the files of the scores (the temporary MSA and score files), an exception thrown by it
+     * is logged, counted as a failure of the protein and the batch continues.
+     */
+    @FunctionalInterface
+    public interface HsspBatchConsumer {
+        /**
+         * @param scores Result of the protein as by
+         *               {@link #getConsevationAndMSAsFromHSSP(String, Structure)}, null if
+         *               it failed
+         * @param error  Cause of the failure, null if the protein succeeded
+         */
+        void accept(File pdbFile, Map<String, Tuple2<File, File>> scores, Throwable error);
+    }
+
+    /**
+     * Runs {@link #getConservationAndMSAsFromHSSPAsync} for the proteins one after another,
+     * reading the HSSP entry of the next protein while the current one is scored. The
+     * consumer is called in the order of the proteins, one protein at a time. A failure of
+     * one protein is passed to the consumer and does not stop the batch, neither does an
+     * exception of the consumer.
+     *
+     * @param proteins PDB files with their PDB ids
+     * @return future completed with the number of failed proteins
+     */
+    public CompletableFuture<Integer> getConservationAndMSAsFromHSSPBatch(
+            List<Tuple2<File, String>> proteins, Executor msaExecutor,
+            Executor conservationExecutor, HsspBatchConsumer consumer) {
+        if (proteins.isEmpty()) return CompletableFuture.completedFuture(0);
+        CompletableFuture<HsspInput> first =
+                async(() -> fetchHssp(proteins.get(0).getItem2()), msaExecutor);
+        return runBatch(proteins, 0, first, 0, msaExecutor, conservationExecutor, consumer);
+    }
+
+    private CompletableFuture<Integer> runBatch(List<Tuple2<File, String>> proteins, int index,
+                                                CompletableFuture<HsspInput> input, int failed,
+                                                Executor msaExecutor,
+                                                Executor conservationExecutor,
+                                                HsspBatchConsumer consumer) {
+        File pdbFile = proteins.get(index).getItem1();
+        long start = Metrics.INSTANCE.start();
+        // Prefetch the next entry once this one is read, while this protein is scored.
+        CompletableFuture<HsspInput> next = index + 1 < proteins.size()
+                ? input.handle((in, error) -> null).thenCompose(v ->
+                        async(() -> fetchHssp(proteins.get(index + 1).getItem2()), msaExecutor))
+                : null;
+        return input
+                .thenCompose(in -> conservationAsync(in,
+                        async(() -> BioUtils.INSTANCE.loadPdbFile(pdbFile), msaExecutor),
+                        msaExecutor, conservationExecutor))
+                .handle((scores, error) -> {
+                    recordPipeline(start, error);
+                    Throwable cause = error instanceof CompletionException
+                            ? error.getCause() : error;
+                    try {
+                        consumer.accept(pdbFile, scores, cause);
+                    } catch (RuntimeException e) {
+                        logger.warn("Consumer of the HSSP batch failed for {}", pdbFile.getName(),
+                                e);
+                        return failed + 1;
+                    }
+                    return error == null ? failed : failed + 1;
+                })
+                .thenCompose(total -> next != null
+                        ? runBatch(proteins, index + 1, next, total, msaExecutor,
+                                conservationExecutor, consumer)
+                        : CompletableFuture.completedFuture(total));
+    }
+
+    /**
+     * Extracts the MSAs of the fetched entry, computes their conservation and matches the
+     * chains of the protein.
+     */
+    private CompletableFuture<Map<String, Tuple2<File, File>>> conservationAsync(
+            HsspInput input, CompletableFuture<Structure> protein, Executor msaExecutor,
+            Executor conservationExecutor) {
+        if (input.alignments == null) {
+            // The script converts all chains at once.
+            return async(() -> runHsspToFasta(input), msaExecutor).thenCompose(msas -> {
+                Map<String, CompletableFuture<File>> msaFutures = new LinkedHashMap<>();
+                msas.forEach((chainId, msa) ->
+                        msaFutures.put(chainId, CompletableFuture.completedFuture(msa)));
+                return conservationAsync(msaFutures, protein, msaExecutor,
+                        conservationExecutor);
+            });
+        }
+        Map<String, CompletableFuture<File>> msaFutures = new LinkedHashMap<>();
+        input.alignments.forEach((chainId, alignment) -> msaFutures.put(chainId,
+                async(() -> writeMSA(chainId, alignment), msaExecutor)));
+        return conservationAsync(msaFutures, protein, msaExecutor, conservationExecutor);
+    }
+
+    private CompletableFuture<Map<String, Tuple2<File, File>>> conservationAsync(
+            Map<String, CompletableFuture<File>> msaFutures, CompletableFuture<Structure> protein,
+            Executor msaExecutor, Executor conservationExecutor) {
+        boolean conservation = canComputeConservation();
+        List<CompletableFuture<?>> stages = new ArrayList<>(msaFutures.values());
+        Map<String, CompletableFuture<ChainJob>> jobs = new LinkedHashMap<>();
+        if (conservation) {
+            msaFutures.forEach((chainId, msa) -> jobs.put(chainId, msa.thenApplyAsync(
+                    file -> runConservation(new ChainJob(chainId, file)),
+                    conservationExecutor)));
+            stages.addAll(jobs.values());
+        }
+        stages.add(protein);
+        return CompletableFuture.allOf(stages.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(v -> async(() -> {
+                    Map<String, File> msas = new HashMap<>();
+                    msaFutures.forEach((chainId, msa) -> msas.put(chainId, msa.join()));
+                    Map<String, File> scores = new HashMap<>();
+                    for (CompletableFuture<ChainJob> future : jobs.values()) {
+                        ChainJob job = future.join();
+                        logger.info("Conservation for chain {}", job);
+                        if (job.isOk()) {
+                            scores.put(job.getChainId(), job.getScoreFile());
+                        }
+                    }
+                    return matchChains(protein.join(), msas, scores);
+                }, msaExecutor));
+    }
+
+    private static void recordPipeline(long start, Throwable error) {
+        if (error == null) {
+            Metrics.INSTANCE.record(Metrics.HSSP_PIPELINE, null, start, -1);
+        } else {
+            Metrics.INSTANCE.recordError(Metrics.HSSP_PIPELINE, null, start);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Stage<T> {
+        T get() throws Exception;
+    }
+
+    /**
+     * Runs the stage on the executor, checked exceptions complete the future exceptionally.
+     */
+    private static <T> CompletableFuture<T> async(Stage<T> stage, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return stage.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
 }
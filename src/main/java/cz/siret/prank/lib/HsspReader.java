@@ -0,0 +1,190 @@
+package cz.siret.prank.lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads per-chain multiple sequence alignments from an HSSP file.
+ *
+ * The query sequence of a chain is taken from the AA column of the ALIGNMENTS section,
+ * every homologous protein aligned to the chain adds one row taken from the alignment
+ * columns (unaligned positions become gaps, insertions are dropped, so all rows have the
+ * length of the chain). Chain breaks are skipped. The file is read in a single pass.
+ */
+public class HsspReader {
+    // Default column positions of the ALIGNMENTS section, used if the header is unusual.
+    private static final int DEFAULT_CHAIN_POS = 12;
+    private static final int DEFAULT_AA_POS = 14;
+    private static final int DEFAULT_ALIGNMENT_POS = 51;
+
+    /**
+     * Alignments of all chains of one HSSP entry.
+     */
+    public static class Entry {
+        private final Map<String, JsdConservation.Alignment> chains;
+
+        private Entry(Map<String, JsdConservation.Alignment> chains) {
+            this.chains = chains;
+        }
+
+        public Map<String, JsdConservation.Alignment> getChains() {
+            return chains;
+        }
+    }
+
+    public static Entry read(InputStream inputStream, String pdbId) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(inputStream, StandardCharsets.ISO_8859_1), 1 << 16);
+        List<String> proteinIds = new ArrayList<>();
+        // Rows of the alignment section: chain and residue of every SeqNo.
+        StringBuilder rowChains = new StringBuilder();
+        StringBuilder rowResidues = new StringBuilder();
+        // Aligned residues of every protein, allocated once the number of rows is known.
+        List<char[]> proteinRows = new ArrayList<>();
+        List<String> blockRows = new ArrayList<>();
+        boolean firstBlock = true;
+        int blockStart = 0;
+        int chainPos = DEFAULT_CHAIN_POS, aaPos = DEFAULT_AA_POS;
+        int alignmentPos = DEFAULT_ALIGNMENT_POS;
+
+        String section = "";
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("##")) {
+                if (section.equals("ALIGNMENTS")) {
+                    addBlock(blockRows, blockStart, proteinIds.size(), proteinRows);
+                    firstBlock = false;
+                }
+                if (line.startsWith("## PROTEINS")) {
+                    section = "PROTEINS";
+                } else if (line.startsWith("## ALIGNMENTS")) {
+                    section = "ALIGNMENTS";
+                    // ## ALIGNMENTS    1 -   70
+                    String range = line.substring("## ALIGNMENTS".length()).trim();
+                    blockStart = Integer.parseInt(range.split("[ -]+")[0]) - 1;
+                    blockRows.clear();
+                } else {
+                    section = "OTHER";
+                }
+                continue;
+            }
+            if (line.startsWith("//")) break;
+            switch (section) {
+                case "PROTEINS":
+                    //   NR.    ID         STRID   %IDE ...
+                    //     1 : CRAM_CRAAB          1.00 ...
+                    int colon = line.indexOf(':');
+                    if (colon > 0 && !line.trim().startsWith("NR.")) {
+                        String rest = line.substring(colon + 1).trim();
+                        int end = rest.indexOf(' ');
+                        proteinIds.add(end > 0 ? rest.substring(0, end) : rest);
+                    }
+                    break;
+                case "ALIGNMENTS":
+                    if (line.trim().startsWith("SeqNo")) {
+                        int aa = line.indexOf(" AA ");
+                        int alignment = line.indexOf("....:");
+                        if (aa > 0 && alignment > 0) {
+                            aaPos = aa + 1;
+                            chainPos = aaPos - 2;
+                            alignmentPos = alignment;
+                        }
+                        break;
+                    }
+                    if (firstBlock) {
+                        rowChains.append(charAt(line, chainPos));
+                        rowResidues.append(charAt(line, aaPos));
+                    }
+                    blockRows.add(line.length() > alignmentPos
+                            ? line.substring(alignmentPos) : "");
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (section.equals("ALIGNMENTS")) {
+            addBlock(blockRows, blockStart, proteinIds.size(), proteinRows);
+        }
+        return new Entry(buildChains(pdbId, proteinIds, rowChains, rowResidues, proteinRows));
+    }
+
+    private static char charAt(String line, int pos) {
+        return pos < line.length() ? line.charAt(pos) : ' ';
+    }
+
+    private static void addBlock(List<String> blockRows, int blockStart, int proteins,
+                                 List<char[]> proteinRows) {
+        int rows = blockRows.size();
+        int blockSize = 0;
+        for (String row : blockRows) {
+            blockSize = Math.max(blockSize, row.length());
+        }
+        blockSize = Math.min(blockSize, proteins - blockStart);
+        while (proteinRows.size() < blockStart + blockSize) {
+            proteinRows.add(null);
+        }
+        for (int k = 0; k < blockSize; k++) {
+            char[] protein = new char[rows];
+            for (int r = 0; r < rows; r++) {
+                protein[r] = normalizeResidue(charAt(blockRows.get(r), k));
+            }
+            proteinRows.set(blockStart + k, protein);
+        }
+        blockRows.clear();
+    }
+
+    private static char normalizeResidue(char c) {
+        if (c == ' ' || c == '.') return '-';
+        return Character.toUpperCase(c);
+    }
+
+    private static Map<String, JsdConservation.Alignment> buildChains(
+            String pdbId, List<String> proteinIds, CharSequence rowChains,
+            CharSequence rowResidues, List<char[]> proteinRows) {
+        // Rows of every chain in the order of the file.
+        Map<String, List<Integer>> chainRows = new LinkedHashMap<>();
+        for (int r = 0; r < rowChains.length(); r++) {
+            if (rowResidues.charAt(r) == '!') continue; // Chain break
+            chainRows.computeIfAbsent(String.valueOf(rowChains.charAt(r)).trim(),
+                    k -> new ArrayList<>()).add(r);
+        }
+        Map<String, JsdConservation.Alignment> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> chain : chainRows.entrySet()) {
+            List<Integer> rows = chain.getValue();
+            List<String> names = new ArrayList<>();
+            List<char[]> sequences = new ArrayList<>();
+            char[] query = new char[rows.size()];
+            for (int i = 0; i < query.length; i++) {
+                char c = rowResidues.charAt(rows.get(i));
+                // DSSP marks bridged cysteines by lowercase letters.
+                query[i] = Character.isLowerCase(c) ? 'C' : c;
+            }
+            names.add(pdbId + chain.getKey());
+            sequences.add(query);
+            for (int k = 0; k < proteinRows.size(); k++) {
+                char[] protein = proteinRows.get(k);
+                if (protein == null) continue;
+                char[] sequence = new char[rows.size()];
+                boolean aligned = false;
+                for (int i = 0; i < sequence.length; i++) {
+                    int r = rows.get(i);
+                    sequence[i] = r < protein.length ? protein[r] : '-';
+                    aligned |= sequence[i] != '-';
+                }
+                if (aligned) {
+                    names.add(k < proteinIds.size() ? proteinIds.get(k) : "protein" + (k + 1));
+                    sequences.add(sequence);
+                }
+            }
+            result.put(chain.getKey(), new JsdConservation.Alignment(names, sequences));
+        }
+        return result;
+    }
+}
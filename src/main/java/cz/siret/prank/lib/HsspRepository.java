@@ -0,0 +1,409 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import cz.siret.prank.lib.utils.BatchExecutor;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * HSSP mirror repacked into a few large segment files with a memory-mapped index.
+ *
+ * Every entry is stored as raw deflate data in one of the segment files
+ * (hssp-GENERATION-NNNN.seg), deflate decodes several times faster than bzip2. The index
+ * (hssp.idx) is an open addressing hash table of fixed size slots mapping the lower-cased
+ * pdbId to the segment, offset, lengths and CRC32 of the entry, so a lookup touches a single
+ * slot of the mapped file and one positional read of the segment.
+ *
+ * Every repack writes segments of a new generation and replaces the index last, files in use
+ * are never rewritten. An open repository keeps reading the index and segments it opened,
+ * callers reopen it when the index file changes.
+ */
+public class HsspRepository implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(HsspRepository.class);
+
+    public static final String INDEX_FILE = "hssp.idx";
+    private static final String SEGMENT_FORMAT = "hssp-%d-%04d.seg";
+    /** Segments of the version 1 indexes, which have no generation. */
+    private static final String SEGMENT_FORMAT_V1 = "hssp-%04d.seg";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x48535049; // "HSPI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int KEY_SIZE = 16;
+    // key, segment, raw length, offset, compressed length, crc
+    private static final int SLOT_SIZE = KEY_SIZE + 4 + 4 + 8 + 4 + 4;
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final MappedByteBuffer index;
+    private final int slots;
+    private final int entries;
+    private final FileChannel[] segments;
+
+    private HsspRepository(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve(INDEX_FILE),
+                StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        index.order(ByteOrder.BIG_ENDIAN);
+        int version = index.getInt(4);
+        if (index.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+            throw new IOException("Not an HSSP index: " + dir.resolve(INDEX_FILE));
+        }
+        slots = index.getInt(8);
+        entries = index.getInt(12);
+        segments = new FileChannel[index.getInt(16)];
+        long generation = version == 1 ? -1 : index.getLong(20);
+        // All segments are opened now, so that a later repack cannot mix generations.
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = FileChannel.open(segmentFile(dir, generation, i),
+                        StandardOpenOption.READ);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the repository in the directory, null if the directory has no index
+     */
+    public static HsspRepository open(Path dir) throws IOException {
+        if (dir == null || !Files.isRegularFile(dir.resolve(INDEX_FILE))) return null;
+        return new HsspRepository(dir);
+    }
+
+    public int size() {
+        return entries;
+    }
+
+    public boolean contains(String pdbId) {
+        return findSlot(key(pdbId)) >= 0;
+    }
+
+    /**
+     * @return decompressed HSSP file of the entry, null if it is not in the repository
+     */
+    public InputStream openEntry(String pdbId) throws IOException {
+        int slot = findSlot(key(pdbId));
+        if (slot < 0) return null;
+        int pos = HEADER_SIZE + slot * SLOT_SIZE + KEY_SIZE;
+        int segment = index.getInt(pos);
+        int rawLength = index.getInt(pos + 4);
+        long offset = index.getLong(pos + 8);
+        int length = index.getInt(pos + 16);
+        int crc = index.getInt(pos + 20);
+
+        ByteBuffer compressed = ByteBuffer.allocate(length);
+        FileChannel channel = segments[segment];
+        while (compressed.hasRemaining()) {
+            if (channel.read(compressed, offset + compressed.position()) < 0) {
+                throw new EOFException("Truncated HSSP segment " + segment);
+            }
+        }
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed.array());
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                n += inflater.inflate(raw, n, rawLength - n);
+                if (n < rawLength && inflater.needsInput()) break;
+            }
+            if (n != rawLength) {
+                throw new IOException("Corrupted HSSP entry " + pdbId);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted HSSP entry " + pdbId, e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(raw);
+        if ((int) crc32.getValue() != crc) {
+            throw new IOException("CRC mismatch of HSSP entry " + pdbId);
+        }
+        return new ByteArrayInputStream(raw);
+    }
+
+    private static Path segmentFile(Path dir, long generation, int segment) {
+        return dir.resolve(generation < 0 ? String.format(SEGMENT_FORMAT_V1, segment)
+                : String.format(SEGMENT_FORMAT, generation, segment));
+    }
+
+    private int findSlot(byte[] key) {
+        if (key == null || slots == 0) return -1;
+        int slot = hash(key) & (slots - 1);
+        for (int i = 0; i < slots; i++) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            if (index.get(pos) == 0) return -1;
+            boolean equal = true;
+            for (int k = 0; k < KEY_SIZE && equal; k++) {
+                equal = index.get(pos + k) == key[k];
+            }
+            if (equal) return slot;
+            slot = (slot + 1) & (slots - 1);
+        }
+        return -1;
+    }
+
+    private static byte[] key(String pdbId) {
+        byte[] id = pdbId.toLowerCase().getBytes(StandardCharsets.US_ASCII);
+        if (id.length == 0 || id.length > KEY_SIZE) return null;
+        return Arrays.copyOf(id, KEY_SIZE);
+    }
+
+    private static int hash(byte[] key) {
+        // FNV-1a
+        int h = 0x811c9dc5;
+        for (byte b : key) {
+            h = (h ^ b) * 0x01000193;
+        }
+        return h;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : segments) {
+            if (channel != null) channel.close();
+        }
+    }
+
+    private static class Entry {
+        private final byte[] key;
+        private final int segment;
+        private final int rawLength;
+        private final long offset;
+        private final int length;
+        private final int crc;
+
+        private Entry(byte[] key, int segment, int rawLength, long offset, int length,
+                      int crc) {
+            this.key = key;
+            this.segment = segment;
+            this.rawLength = rawLength;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private static class Packed {
+        private final byte[] data;
+        private final int rawLength;
+        private final int crc;
+
+        private Packed(byte[] data, int rawLength, int crc) {
+            this.data = data;
+            this.rawLength = rawLength;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * @return the pdbId of an HSSP file name (1abc.hssp, 1abc.hssp.bz2, ...), null otherwise
+     */
+    private static String pdbIdOf(File file) {
+        String name = file.getName();
+        int end = name.indexOf(".hssp");
+        return end > 0 ? name.substring(0, end).toLowerCase() : null;
+    }
+
+    private static Packed pack(File file) throws IOException {
+        byte[] raw;
+        try (InputStream in = Utils.INSTANCE.readFile(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Utils.INSTANCE.copyStream(in, out);
+            raw = out.toByteArray();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return new Packed(out.toByteArray(), raw.length, (int) crc.getValue());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Repacks all HSSP files of hsspDir (compressed or not) into a repository in outDir,
+     * files are read and compressed on the given number of threads. The segments are written
+     * to temporary files and renamed when complete, the index replaces the previous one last,
+     * so an interrupted repack leaves the previous repository (if any) untouched. Segments of
+     * the previous generations are deleted afterwards.
+     *
+     * @return number of repacked entries
+     */
+    public static int repack(Path hsspDir, Path outDir, int threads)
+            throws IOException, InterruptedException {
+        File[] listed = hsspDir.toFile().listFiles((d, name) -> name.contains(".hssp"));
+        List<File> files = new ArrayList<>();
+        for (File f : listed != null ? listed : new File[0]) {
+            if (f.isFile() && pdbIdOf(f) != null && key(pdbIdOf(f)) != null) files.add(f);
+        }
+        files.sort(Comparator.comparing(File::getName));
+        Files.createDirectories(outDir);
+        long generation = Math.max(System.currentTimeMillis(), previousGeneration(outDir) + 1);
+
+        List<Entry> entries = new ArrayList<>(files.size());
+        // Segment currently being written, wrapped to be updated from the consumer.
+        FileChannel[] segment = new FileChannel[1];
+        int[] segmentNumber = {-1};
+        long[] segmentSize = {0};
+        IOException[] writeError = {null};
+        try (BatchExecutor executor = new BatchExecutor(threads)) {
+            int failed = executor.run(files, HsspRepository::pack, result -> {
+                if (!result.isOk() || writeError[0] != null) return;
+                Packed packed = result.getValue();
+                byte[] key = key(pdbIdOf(result.getFile()));
+                try {
+                    if (segment[0] == null
+                            || segmentSize[0] + packed.data.length > DEFAULT_MAX_SEGMENT_BYTES) {
+                        if (segment[0] != null) segment[0].close();
+                        segmentNumber[0]++;
+                        segmentSize[0] = 0;
+                        segment[0] = FileChannel.open(tmpFile(segmentFile(outDir, generation,
+                                segmentNumber[0])), StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(packed.data);
+                    while (buffer.hasRemaining()) {
+                        segment[0].write(buffer);
+                    }
+                    entries.add(new Entry(key, segmentNumber[0], packed.rawLength,
+                            segmentSize[0], packed.data.length, packed.crc));
+                    segmentSize[0] += packed.data.length;
+                } catch (IOException e) {
+                    writeError[0] = e;
+                }
+            });
+            if (failed > 0) {
+                logger.warn("Failed to repack {} of {} HSSP files", failed, files.size());
+            }
+        } finally {
+            if (segment[0] != null) segment[0].close();
+            if (writeError[0] != null || Thread.currentThread().isInterrupted()) {
+                for (int i = 0; i <= segmentNumber[0]; i++) {
+                    Files.deleteIfExists(tmpFile(segmentFile(outDir, generation, i)));
+                }
+            }
+        }
+        if (writeError[0] != null) throw writeError[0];
+        for (int i = 0; i <= segmentNumber[0]; i++) {
+            Path segmentFile = segmentFile(outDir, generation, i);
+            Files.move(tmpFile(segmentFile), segmentFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+        writeIndex(outDir, entries, segmentNumber[0] + 1, generation);
+        deleteOtherGenerations(outDir, generation);
+        logger.info("Repacked {} HSSP entries into {} segments in {}", entries.size(),
+                segmentNumber[0] + 1, outDir);
+        return entries.size();
+    }
+
+    private static Path tmpFile(Path file) {
+        return file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+    }
+
+    /**
+     * @return generation of the current index of the directory, -1 if there is none
+     */
+    private static long previousGeneration(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir.resolve(INDEX_FILE),
+                StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read the whole header.
+            }
+            return header.getInt(0) == MAGIC && header.getInt(4) >= 2 ? header.getLong(20) : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Deletes the segments not belonging to the generation. Open repositories keep reading
+     * them on POSIX file systems, elsewhere files in use are left for the next repack.
+     */
+    private static void deleteOtherGenerations(Path dir, long generation) {
+        String current = "hssp-" + generation + "-";
+        File[] old = dir.toFile().listFiles((d, name) -> name.startsWith("hssp-")
+                && name.endsWith(".seg") && !name.startsWith(current));
+        for (File f : old != null ? old : new File[0]) {
+            try {
+                Files.deleteIfExists(f.toPath());
+            } catch (IOException e) {
+                logger.warn("Could not delete old HSSP segment {}: {}", f, e.toString());
+            }
+        }
+    }
+
+    private static void writeIndex(Path outDir, List<Entry> entries, int segmentCount,
+                                   long generation) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(1, entries.size() * 2 - 1)) << 1;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + slots * SLOT_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, slots);
+        buffer.putInt(12, entries.size());
+        buffer.putInt(16, segmentCount);
+        buffer.putLong(20, generation);
+        for (Entry entry : entries) {
+            int slot = hash(entry.key) & (slots - 1);
+            while (buffer.get(HEADER_SIZE + slot * SLOT_SIZE) != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            for (int k = 0; k < KEY_SIZE; k++) {
+                buffer.put(pos + k, entry.key[k]);
+            }
+            buffer.putInt(pos + KEY_SIZE, entry.segment);
+            buffer.putInt(pos + KEY_SIZE + 4, entry.rawLength);
+            buffer.putLong(pos + KEY_SIZE + 8, entry.offset);
+            buffer.putInt(pos + KEY_SIZE + 16, entry.length);
+            buffer.putInt(pos + KEY_SIZE + 20, entry.crc);
+        }
+        Path tmp = tmpFile(outDir.resolve(INDEX_FILE));
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tmp, outDir.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,344 @@
+package cz.siret.prank.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * In-process Jensen-Shannon divergence conservation, a port of score_conservation.py
+ * (Capra and Singh, 2007) with the settings used by the conservation script: BLOSUM62
+ * background distribution, Henikoff sequence weighting, gap penalty, gap cutoff 0.3 and
+ * window of size 3 with lambda 0.5.
+ *
+ * The scores are the same as the ones in the .hom files produced by the script (up to
+ * floating point rounding of the log function) and can be written in the same format,
+ * see {@link Scores#writeHomFile(File)}.
+ */
+public final class JsdConservation {
+    // Amino acids in the order of the frequency counts, the last one is the gap.
+    private static final String AMINO_ACIDS = "ARNDCQEGHILKMFPSTWYV-";
+    private static final int GAP = AMINO_ACIDS.length() - 1;
+    private static final String IUPAC_ALPHABET = "ABCDEFGHIKLMNPQRSTUVWYZX*-";
+
+    private static final double[] BLOSUM62_BACKGROUND = {0.078, 0.051, 0.041, 0.052, 0.024,
+            0.034, 0.059, 0.083, 0.025, 0.062, 0.092, 0.056, 0.024, 0.044, 0.043, 0.059, 0.055,
+            0.014, 0.034, 0.072};
+    private static final double PSEUDOCOUNT = .0000001;
+    private static final double GAP_CUTOFF = .3;
+    private static final int WINDOW_SIZE = 3;
+    private static final double WINDOW_LAMBDA = .5;
+    /** Score of columns with too many gaps. */
+    public static final double GAP_COLUMN_SCORE = -1000;
+
+    private static final byte[] AA_TO_INDEX = new byte[128];
+
+    static {
+        for (int i = 0; i < AA_TO_INDEX.length; i++) {
+            AA_TO_INDEX[i] = -1;
+        }
+        for (int i = 0; i < AMINO_ACIDS.length(); i++) {
+            AA_TO_INDEX[AMINO_ACIDS.charAt(i)] = (byte) i;
+        }
+    }
+
+    /**
+     * Multiple sequence alignment, the first sequence is the query.
+     */
+    public static class Alignment {
+        private final List<String> names;
+        private final List<char[]> sequences;
+
+        public Alignment(List<String> names, List<char[]> sequences) {
+            this.names = names;
+            this.sequences = sequences;
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        public List<char[]> getSequences() {
+            return sequences;
+        }
+
+        public int length() {
+            return sequences.isEmpty() ? 0 : sequences.get(0).length;
+        }
+
+        /**
+         * Writes the alignment in FASTA format, lines are wrapped at 80 characters.
+         */
+        public void writeFasta(Writer writer) throws IOException {
+            for (int i = 0; i < sequences.size(); i++) {
+                writer.write('>');
+                writer.write(names.get(i));
+                writer.write('\n');
+                char[] sequence = sequences.get(i);
+                for (int start = 0; start < sequence.length; start += 80) {
+                    writer.write(sequence, start, Math.min(80, sequence.length - start));
+                    writer.write('\n');
+                }
+            }
+        }
+
+        public String getColumn(int column) {
+            char[] result = new char[sequences.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = sequences.get(i)[column];
+            }
+            return new String(result);
+        }
+    }
+
+    /**
+     * Conservation score of every alignment column.
+     */
+    public static class Scores {
+        private final Alignment alignment;
+        private final double[] scores;
+
+        private Scores(Alignment alignment, double[] scores) {
+            this.alignment = alignment;
+            this.scores = scores;
+        }
+
+        public Alignment getAlignment() {
+            return alignment;
+        }
+
+        public double[] getScores() {
+            return scores;
+        }
+
+        /**
+         * @return residue of the query sequence in the column
+         */
+        public char getQueryResidue(int column) {
+            return alignment.getSequences().get(0)[column];
+        }
+
+        /**
+         * Writes the scores in the format of the conservation script output
+         * (align_column_number, score, column).
+         */
+        public void write(PrintWriter writer) {
+            writer.print("# align_column_number\tscore\tcolumn\n");
+            for (int i = 0; i < scores.length; i++) {
+                writer.print(String.format(Locale.ROOT, "%d\t%.5f\t%s\n", i, scores[i],
+                        alignment.getColumn(i)));
+            }
+        }
+
+        public void writeHomFile(File file) throws IOException {
+            try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+                write(writer);
+            }
+        }
+    }
+
+    public static Alignment readFastaAlignment(File file) throws IOException {
+        try (InputStream in = Utils.INSTANCE.readFile(file)) {
+            return readFastaAlignment(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Reads the alignment the same way as read_fasta_alignment of the script: sequences
+     * are upper-cased, unknown letters and X become gaps, B becomes D and Z becomes Q.
+     */
+    public static Alignment readFastaAlignment(Reader reader) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<char[]> sequences = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty() || line.charAt(0) == ';') continue;
+            if (line.charAt(0) == '>') {
+                names.add(line.substring(1).replace("\r", ""));
+                if (current.length() > 0) {
+                    sequences.add(normalizeSequence(current));
+                    current.setLength(0);
+                }
+            } else if (IUPAC_ALPHABET.indexOf(line.charAt(0)) >= 0) {
+                for (int i = 0; i < line.length(); i++) {
+                    if (line.charAt(i) != '\r') current.append(line.charAt(i));
+                }
+            }
+        }
+        sequences.add(normalizeSequence(current));
+        return new Alignment(names, sequences);
+    }
+
+    private static char[] normalizeSequence(CharSequence sequence) {
+        char[] result = new char[sequence.length()];
+        for (int i = 0; i < result.length; i++) {
+            char c = Character.toUpperCase(sequence.charAt(i));
+            if (IUPAC_ALPHABET.indexOf(c) < 0 || c == 'X') {
+                c = '-';
+            } else if (c == 'B') {
+                c = 'D';
+            } else if (c == 'Z') {
+                c = 'Q';
+            }
+            result[i] = c;
+        }
+        return result;
+    }
+
+    public static Scores compute(File msaFile) throws IOException {
+        return compute(readFastaAlignment(msaFile));
+    }
+
+    public static Scores compute(Alignment alignment) throws IOException {
+        int length = alignment.length();
+        for (char[] sequence : alignment.getSequences()) {
+            if (sequence.length != length) {
+                throw new IOException("Sequences of the alignment have different lengths.");
+            }
+        }
+        // Residues as indices to AMINO_ACIDS, -1 for symbols outside of it (U, *).
+        int n = alignment.getSequences().size();
+        byte[][] msa = new byte[n][];
+        for (int j = 0; j < n; j++) {
+            char[] sequence = alignment.getSequences().get(j);
+            msa[j] = new byte[length];
+            for (int i = 0; i < length; i++) {
+                char c = sequence[i];
+                msa[j][i] = c < 128 ? AA_TO_INDEX[c] : -1;
+            }
+        }
+        double[] weights = calculateSequenceWeights(msa, length);
+        double weightSum = 0;
+        for (double w : weights) {
+            weightSum += w;
+        }
+
+        double[] scores = new double[length];
+        double[] freqCounts = new double[AMINO_ACIDS.length()];
+        for (int i = 0; i < length; i++) {
+            int gaps = 0;
+            for (int j = 0; j < n; j++) {
+                if (msa[j][i] == GAP) gaps++;
+            }
+            if ((double) gaps / n <= GAP_CUTOFF) {
+                scores[i] = jsDivergence(msa, i, weights, weightSum, freqCounts);
+            } else {
+                scores[i] = GAP_COLUMN_SCORE;
+            }
+        }
+        return new Scores(alignment, windowScores(scores));
+    }
+
+    /**
+     * Henikoff position-based sequence weights.
+     */
+    private static double[] calculateSequenceWeights(byte[][] msa, int length) {
+        double[] weights = new double[msa.length];
+        int[] freqCounts = new int[AMINO_ACIDS.length()];
+        for (int i = 0; i < length; i++) {
+            Arrays.fill(freqCounts, 0);
+            for (byte[] sequence : msa) {
+                if (sequence[i] >= 0 && sequence[i] != GAP) freqCounts[sequence[i]]++;
+            }
+            int observedTypes = 0;
+            for (int count : freqCounts) {
+                if (count > 0) observedTypes++;
+            }
+            for (int j = 0; j < msa.length; j++) {
+                int d = msa[j][i] >= 0 ? freqCounts[msa[j][i]] * observedTypes : 0;
+                if (d > 0) {
+                    weights[j] += 1. / d;
+                }
+            }
+        }
+        for (int j = 0; j < weights.length; j++) {
+            weights[j] /= length;
+        }
+        return weights;
+    }
+
+    private static double jsDivergence(byte[][] msa, int column, double[] weights,
+                                       double weightSum, double[] freqCounts) {
+        // Weighted frequency counts with pseudocounts, in the order of AMINO_ACIDS.
+        Arrays.fill(freqCounts, PSEUDOCOUNT);
+        double gapSum = 0;
+        for (int j = 0; j < msa.length; j++) {
+            byte aa = msa[j][column];
+            if (aa >= 0) {
+                freqCounts[aa] += 1 * weights[j];
+            }
+            if (aa == GAP) {
+                gapSum += weights[j];
+            }
+        }
+        double total = weightSum + AMINO_ACIDS.length() * PSEUDOCOUNT;
+        for (int k = 0; k < freqCounts.length; k++) {
+            freqCounts[k] = freqCounts[k] / total;
+        }
+        // The background distribution has no gaps, drop them and renormalize.
+        double sum = 0;
+        for (int k = 0; k < GAP; k++) {
+            sum += freqCounts[k];
+        }
+        double d = 0;
+        for (int k = 0; k < GAP; k++) {
+            double fc = freqCounts[k] / sum;
+            double bg = BLOSUM62_BACKGROUND[k];
+            double r = .5 * fc + .5 * bg;
+            if (r != 0.0) {
+                if (fc == 0.0) {
+                    d += bg * log2(bg / r);
+                } else if (bg == 0.0) {
+                    d += fc * log2(fc / r);
+                } else {
+                    d += fc * log2(fc / r) + bg * log2(bg / r);
+                }
+            }
+        }
+        d /= 2;
+        // Weighted gap penalty
+        return d * (1 - (gapSum / weightSum));
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    /**
+     * Mixes the score of each column with the average of its non-gap neighbours.
+     */
+    private static double[] windowScores(double[] scores) {
+        double[] result = scores.clone();
+        for (int i = WINDOW_SIZE; i < scores.length - WINDOW_SIZE; i++) {
+            if (scores[i] < 0) continue;
+            double sum = 0;
+            int terms = 0;
+            for (int j = i - WINDOW_SIZE; j < i + WINDOW_SIZE + 1; j++) {
+                if (i != j && scores[j] >= 0) {
+                    terms++;
+                    sum += scores[j];
+                }
+            }
+            if (terms > 0) {
+                result[i] = (1 - WINDOW_LAMBDA) * scores[i] + WINDOW_LAMBDA * sum / terms;
+            }
+        }
+        return result;
+    }
+
+    // static utility class
+    private JsdConservation() {}
+}
@@ -2,25 +2,33 @@ package cz.siret.prank.lib;
 
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
-import org.biojava.nbio.structure.io.PDBFileReader;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+import cz.siret.prank.lib.utils.BatchExecutor;
 import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.Metrics;
 import cz.siret.prank.lib.utils.Tuple;
 import cz.siret.prank.lib.utils.Tuple2;
 import cz.siret.prank.lib.utils.Utils;
@@ -28,68 +36,120 @@ import cz.siret.prank.lib.utils.Utils;
 public class Main {
 
     public static void main(String[] args) {
+        int exitCode = run(args, System.out, System.err);
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Runs one command, used both by {@link #main(String[])} and by {@link Daemon} jobs.
+     *
+     * @param out Stream for the results of the command
+     * @param err Stream for errors
+     * @return exit code of the command
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        return run(args, out, err, null);
+    }
+
+    /**
+     * @param workerPools Provider of conservation worker pools shared by the commands (of a
+     *                    daemon), null to start the workers for this command only
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err,
+                          ExternalTools.WorkerPoolProvider workerPools) {
         try {
             if (args.length == 0) {
                 Path dir = Paths.get("e:/School/MFF/Projects/Prank2Web/Experiments" +
                         "/joined/");
                 //analyzeConservation(dir, "hssp", ConservationScore.ScoreFormat.JSDFormat);
-                return;
+                return 0;
             }
             switch (args[0].toLowerCase()) {
                 case "pdbtofasta":
+                    // Parameters are pdbfile or directory, [threads]
                     try {
                         File argFile = new File(args[1]);
                         if (!argFile.exists()) {
-                            System.err.println("File specified does not exists.");
-                            return;
+                            err.println("File specified does not exists.");
+                            return 0;
                         }
                         if (argFile.isDirectory()) {
-                            BioUtils.INSTANCE.dirToFastaFiles(argFile).forEach(System.out::println);
+                            runBatch(listFiles(argFile, (File dir, String name) -> true),
+                                    threadsArg(args, 2),
+                                    BioUtils.INSTANCE::fileToFastaFiles,
+                                    files -> files.forEach(out::println), out, err);
                         } else {
-                            BioUtils.INSTANCE.fileToFastaFiles(argFile).forEach(System.out::println);
+                            BioUtils.INSTANCE.fileToFastaFiles(argFile).forEach(out::println);
                         }
-                    } catch (StructureException e) {
-                        e.printStackTrace();
+                    } catch (StructureException | InterruptedException e) {
+                        e.printStackTrace(err);
                     }
                     break;
                 case "pickscoresfromhssp":
                     // Parameters are pdbfile, pdbId, hsspToFasta, msaToConservation, hsspDir
-                    try {
-                        ExternalTools externalTools = new ExternalTools(args[3], args[4], args[5]);
+                    // hsspToFasta and msaToConservation can be "native" to run them in-process,
+                    // msaToConservation "worker" runs the stub ConservationWorker processes.
+                    try (ExternalTools externalTools = externalTools(args[3], args[4], args[5],
+                            workerPools)) {
                         Path pdbFile = Paths.get(args[1]);
                         Structure protein = BioUtils.INSTANCE.loadPdbFile(pdbFile.toFile());
                         Map<String, Tuple2<File, File>> scores = externalTools
                                 .getConsevationAndMSAsFromHSSP(args[2], protein);
-                        String baseName = BioUtils.INSTANCE.removePdbExtension(args[1]).getItem1();
-                        Path pdbFileParent = pdbFile.getParent();
                         if (scores.size() <= 0) {
-                            System.exit(1);
+                            return 1;
                         }
-                        for (Map.Entry<String, Tuple2<File, File>> entry : scores.entrySet()) {
-                            Path dest = pdbFileParent.resolve(baseName.concat(entry.getKey())
-                                    .concat(".fasta"));
-                            Files.copy(Paths.get(
-                                    entry.getValue().getItem1().getAbsolutePath()), dest,
-                                    StandardCopyOption.REPLACE_EXISTING);
-                            Utils.INSTANCE.gzipAndDeleteFile(dest.toFile());
-                            dest = pdbFileParent.resolve(baseName.concat(entry.getKey())
-                                    .concat(".hom"));
-                            Files.copy(Paths.get(
-                                    entry.getValue().getItem2().getAbsolutePath()), dest,
-                                    StandardCopyOption.REPLACE_EXISTING);
-                            Utils.INSTANCE.gzipAndDeleteFile(dest.toFile());
-                        }
-                        // Delete the temp files with MSAs and conservation files.
-                         scores.values().stream().forEach(files -> {
-                             files.getItem1().delete();
-                             files.getItem2().delete();
-                         });
+                        saveHsspScores(pdbFile, scores);
                     } catch (IOException | InterruptedException e) {
-                        e.printStackTrace();
-                        System.exit(1);
+                        e.printStackTrace(err);
+                        return 1;
+                    }
+                    break;
+                case "pickscoresfromhsspdir":
+                    // Parameters are directory, hsspToFasta, msaToConservation, hsspDir,
+                    // [threads]. PDB ids are the names of the PDB files, the HSSP entry of
+                    // the next file is read while the current one is scored.
+                    try (ExternalTools externalTools = externalTools(args[2], args[3], args[4],
+                            workerPools)) {
+                        List<Tuple2<File, String>> proteins = new ArrayList<>();
+                        for (File f : listFiles(new File(args[1]),
+                                (File dir, String name) -> name.endsWith(".pdb"))) {
+                            proteins.add(Tuple.create(f,
+                                    BioUtils.INSTANCE.removePdbExtension(f.getName()).getItem1()));
+                        }
+                        ExecutorService msaExecutor = Executors.newSingleThreadExecutor();
+                        ExecutorService conservationExecutor =
+                                Executors.newFixedThreadPool(threadsArg(args, 5));
+                        try {
+                            int failed = externalTools.getConservationAndMSAsFromHSSPBatch(
+                                    proteins, msaExecutor, conservationExecutor,
+                                    (pdbFile, scores, error) -> {
+                                        try {
+                                            if (error != null) throw error;
+                                            saveHsspScores(pdbFile.toPath(), scores);
+                                            out.printf("%s %s\n", pdbFile.getName(),
+                                                    new TreeSet<>(scores.keySet()));
+                                            out.flush();
+                                        } catch (Throwable e) {
+                                            err.printf("%s: %s\n", pdbFile.getName(), e);
+                                        }
+                                    }).get();
+                            if (failed > 0) {
+                                err.printf("Failed to process %d of %d files.\n", failed,
+                                        proteins.size());
+                            }
+                        } finally {
+                            msaExecutor.shutdownNow();
+                            conservationExecutor.shutdownNow();
+                        }
+                    } catch (ExecutionException | InterruptedException e) {
+                        e.printStackTrace(err);
+                        return 1;
                     }
                     break;
                 case "pickscores":
+                    // Parameters are directory, [threads]
                     try {
                         File directory = (new File(args[1]));
                         if (directory.exists() && directory.isDirectory()) {
@@ -99,210 +159,192 @@ public class Main {
                                 }
                                 return false;
                             };
-                            for (Tuple2<File, String> f : ConservationScore.pickScoresForPDBs(
-                                    directory.listFiles(filter))) {
-                                if (f == null || f.getItem1() == null || f.getItem2() == null) {
-                                    int debug = 5;
-                                }
-                                System.out.printf("%s %s\n", f.getItem1().getName(), f.getItem2());
-                            }
+                            runBatch(listFiles(directory, filter), threadsArg(args, 2),
+                                    ConservationScore::pickScoresForPDB,
+                                    scoreFiles -> scoreFiles.forEach(f ->
+                                            out.printf("%s %s\n", f.getItem1().getName(),
+                                                    f.getItem2())), out, err);
                         }
-                    } catch (StructureException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace(err);
                     }
+                    break;
+                case "repackhssp":
+                    // Parameters are hsspDir, [outDir], [threads]
+                    // The repository is used by ExternalTools if outDir is given as hsspDir.
+                    try {
+                        Path hsspDir = Paths.get(args[1]);
+                        Path outDir = args.length > 2 ? Paths.get(args[2]) : hsspDir;
+                        int entries = HsspRepository.repack(hsspDir, outDir,
+                                threadsArg(args, 3));
+                        out.printf("Repacked %d HSSP entries into %s\n", entries, outDir);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace(err);
+                    }
+                    break;
                 case "getproteinsize":
-                    System.out.println(BioUtils.INSTANCE.getProteinSize(
-                            BioUtils.INSTANCE.loadPdbFile(new File(args[1]))));
+                    // Parameters are pdbfile or directory, [threads]
+                    File argFile = new File(args[1]);
+                    if (argFile.isDirectory()) {
+                        try {
+                            runBatch(listFiles(argFile, (File dir, String name) -> true),
+                                    threadsArg(args, 2),
+                                    f -> f.getName() + " " + BioUtils.INSTANCE.getProteinSize(f),
+                                    out::println, out, err);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace(err);
+                        }
+                    } else {
+                        out.println(BioUtils.INSTANCE.getProteinSize(argFile));
+                    }
                     break;
+                case "evaluate":
+                    // Parameters are datasetDir, [jsd|concavity], [threads], [statisticsFile]
+                    // Writes results.<format>.txt and resultsAllRaw.<format>.csv to datasetDir.
+                    try {
+                        File datasetDir = new File(args[1]);
+                        String formatName = args.length > 2 ? args[2].toLowerCase() : "jsd";
+                        ConservationScore.ScoreFormat format = formatName.equals("concavity")
+                                ? ConservationScore.ScoreFormat.ConCavityFormat
+                                : ConservationScore.ScoreFormat.JSDFormat;
+                        File statisticsFile = args.length > 4 ? new File(args[4])
+                                : new File(datasetDir, PocketEvaluation.DEFAULT_STATISTICS_FILE);
+                        PocketEvaluation evaluation = new PocketEvaluation(datasetDir, format,
+                                statisticsFile);
+                        try (PrintWriter raw = new PrintWriter(new BufferedWriter(new FileWriter(
+                                new File(datasetDir, "resultsAllRaw." + formatName + ".csv"))))) {
+                            evaluation.run(threadsArg(args, 3), raw);
+                        }
+                        String summary = evaluation.summary();
+                        Files.write(datasetDir.toPath().resolve("results." + formatName + ".txt"),
+                                summary.getBytes(StandardCharsets.UTF_8));
+                        out.print(summary);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace(err);
+                    }
+                    break;
+                case "metrics":
+                    // Parameters are [json|prometheus]
+                    // Metrics of this JVM, i.e. of the previous jobs when run by a daemon.
+                    Metrics.Snapshot snapshot = Metrics.INSTANCE.snapshot();
+                    out.print(args.length > 1 && args[1].equalsIgnoreCase("json")
+                            ? snapshot.toJson() + "\n" : snapshot.toPrometheus());
+                    break;
+                case "daemon":
+                    // Parameters are [port], [threads]
+                    // Without a port the requests are read from stdin, see Daemon.
+                    Daemon.start(args.length > 1 ? Integer.parseInt(args[1]) : -1,
+                            threadsArg(args, 2));
+                    break;
+                default:
+                    err.println("Unknown command: " + args[0]);
+                    return 2;
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(err);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Creates the tools for the command line arguments, "native" runs the step in-process,
+     * msaToConservation "worker" runs the stub {@link ConservationWorker}. The number of
+     * conservation workers and their timeout in seconds are set by the
+     * {@link ConservationWorkerPool#WORKERS_PROPERTY} and
+     * {@link ConservationWorkerPool#TIMEOUT_PROPERTY} system properties.
+     */
+    private static ExternalTools externalTools(String hsspToFasta, String msaToConservation,
+                                               String hsspDir,
+                                               ExternalTools.WorkerPoolProvider workerPools) {
+        ExternalTools externalTools = new ExternalTools(hsspToFasta, msaToConservation, hsspDir);
+        externalTools.setWorkerPoolProvider(workerPools);
+        externalTools.setNativeHssp("native".equals(hsspToFasta));
+        externalTools.setNativeConservation("native".equals(msaToConservation));
+        boolean stub = "worker".equals(msaToConservation);
+        if (stub) {
+            externalTools.setConservationWorkerCommand(ConservationWorkerPool.stubCommand());
         }
+        externalTools.setConservationWorkers(Integer.getInteger(
+                ConservationWorkerPool.WORKERS_PROPERTY,
+                stub ? BatchExecutor.defaultThreads() : 0));
+        externalTools.setConservationTimeoutMillis(TimeUnit.SECONDS.toMillis(Long.getLong(
+                ConservationWorkerPool.TIMEOUT_PROPERTY,
+                TimeUnit.MILLISECONDS.toSeconds(ConservationWorkerPool.DEFAULT_TIMEOUT_MILLIS))));
+        return externalTools;
     }
 
-    private static ConservationScore loadConservationScore(File pdbFile,
-                                                           Function<String, File> scoreFnc,
-                                                           ConservationScore.ScoreFormat format)
+    /**
+     * Copies the MSAs and conservation files next to the PDB file as gzipped
+     * baseName+chain.fasta and baseName+chain.hom files and deletes the temporary ones.
+     */
+    private static void saveHsspScores(Path pdbFile, Map<String, Tuple2<File, File>> scores)
             throws IOException {
-        try (InputStream pdbIn = Utils.INSTANCE.readFile(pdbFile)) {
-            PDBFileReader reader = new PDBFileReader();
-            Structure s = reader.getStructure(pdbIn);
-            return ConservationScore.fromFiles(s, scoreFnc, format);
+        String baseName = BioUtils.INSTANCE.removePdbExtension(
+                pdbFile.getFileName().toString()).getItem1();
+        Path pdbFileParent = pdbFile.toAbsolutePath().getParent();
+        for (Map.Entry<String, Tuple2<File, File>> entry : scores.entrySet()) {
+            Path dest = pdbFileParent.resolve(baseName.concat(entry.getKey())
+                    .concat(".fasta"));
+            Files.copy(Paths.get(
+                    entry.getValue().getItem1().getAbsolutePath()), dest,
+                    StandardCopyOption.REPLACE_EXISTING);
+            Utils.INSTANCE.gzipAndDeleteFile(dest.toFile());
+            dest = pdbFileParent.resolve(baseName.concat(entry.getKey())
+                    .concat(".hom"));
+            Files.copy(Paths.get(
+                    entry.getValue().getItem2().getAbsolutePath()), dest,
+                    StandardCopyOption.REPLACE_EXISTING);
+            Utils.INSTANCE.gzipAndDeleteFile(dest.toFile());
         }
+        // Delete the temp files with MSAs and conservation files.
+        scores.values().stream().forEach(files -> {
+            files.getItem1().delete();
+            files.getItem2().delete();
+        });
     }
 
-    private static Map<String, List<Integer>> loadDatasetStatistics(File datasetStats) throws
-            IOException {
-        Map<String, List<Integer>> result = new HashMap<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(datasetStats))) {
-            String line;
-            boolean first = true;
-            while ((line = br.readLine()) != null) {
-                // Skip the header.
-                if (first) {
-                    first = false;
-                    continue;
-                }
+    private static int threadsArg(String[] args, int index) {
+        return args.length > index ? Integer.parseInt(args[index]) : BatchExecutor.defaultThreads();
+    }
 
-                String[] tokens = line.split(",");
-                String fileName = tokens[0];
-                List<Integer> pocketList = result.get(fileName);
-                if (pocketList == null) { // No value for given key.
-                    pocketList = new ArrayList<>(1);
-                }
-                // Pocket rank is 4th field in the CSV.
-                pocketList.add(Integer.parseInt(tokens[3]));
-                result.put(fileName, pocketList);
+    /**
+     * Lists regular files of the directory sorted by name, so that the batch output has
+     * a stable order.
+     */
+    private static List<File> listFiles(File directory, FilenameFilter filter) {
+        File[] files = directory.listFiles(filter);
+        List<File> result = new ArrayList<>();
+        for (File f : files != null ? files : new File[0]) {
+            if (f.isFile()) {
+                result.add(f);
             }
         }
+        result.sort(Comparator.comparing(File::getName));
         return result;
     }
-/*
-    private static void analyzeConservation(Path dir, String origin,
-                                            ConservationScore.ScoreFormat format) throws
-            IOException {
-        Map<String, List<Integer>> datasetStats = loadDatasetStatistics(
-                dir.resolve("ranks_rescored.dca4.csv").toFile());
-        List<Integer> truePocketPositionsConservation = new ArrayList<>();
-        List<Integer> truePocketPositionsPrank = new ArrayList<>();
-        List<Integer> truePocketPositionsCombi = new ArrayList<>();
-        List<Integer> falsePocketPositionsConservation = new ArrayList<>();
-        List<Integer> falsePocketPositionsPrank = new ArrayList<>();
-        List<Integer> falsePocketPositionsCombi = new ArrayList<>();
-        List<Integer> numberOfPockets = new ArrayList<>();
-
-        List<Double> truePocketConservationAvg = new ArrayList<>();
-        List<Double> falsePocketConservationAvg = new ArrayList<>();
-
-
-        List<Double> scores = new ArrayList<>();
-        List<Double> conservationScore = new ArrayList<>();
-        List<Boolean> pocketIsTrue = new ArrayList<>();
-        try (PrintWriter result = new PrintWriter(dir.resolve("results." + origin + ".txt")
-                .toFile())) {
-            try (PrintWriter allRaw = new PrintWriter(dir.resolve("resultsAllRaw." + origin + "" +
-                    ".txt").toFile())) {
-                File[] filesInDir = dir.toFile().listFiles();
-                List<ConservationComparison> comparisons = new ArrayList<>();
-                for (File pdb : filesInDir) {
-                    if (pdb.getName().endsWith(".pdb")) {
-                        String nameBase = pdb.getName().substring(0, pdb.getName().length() - 4);
-                        File indices = dir.resolve(nameBase + ".pdb_binding-residues.txt").toFile();
-
-                        Function<String, File> scoreFnc = format == ConservationScore.ScoreFormat
-                                .ConCavityFormat ?
-                                chainId -> dir.resolve(String.format
-                                        ("%s_%s.scores", nameBase, chainId)).toFile() :
-                                chainId -> dir.resolve(String.format
-                                        ("%s%s.scores", nameBase, chainId)).toFile();
-
-                        File predictions = dir.resolve(String.format("%s.pdb_predictions.csv",
-                                nameBase)).toFile();
-                        try {
-                            ConservationScore score = loadConservationScore(pdb, scoreFnc, format);
-                            ConservationComparison comparison =
-                                    ConservationComparison.fromFiles(pdb, score,
-                                            origin, indices);
-                            List<Pocket> pockets = Pocket.parseCSVPrediction(
-                                    new FileInputStream(predictions),
-                                    datasetStats.get(pdb.getName()),
-                                    score);
-
-                            for (Pocket pocket : pockets) {
-                                scores.add((double) pocket.getScore());
-                                conservationScore.add(pocket.getConservationAvg());
-                                pocketIsTrue.add(pocket.isTruePocket());
-                            }
-
-                            for (int i = 0; i < pockets.size(); i++) {
-                                if (pockets.get(i).isTruePocket()) {
-                                    truePocketPositionsPrank.add(i);
-                                    System.out.printf("prank: %d\n", i);
-                                } else {
-                                    falsePocketPositionsPrank.add(i);
-                                }
-                            }
-
-                            pockets.sort(Comparator.comparing(Pocket::getConservationAvg)
-                                    .reversed());
-                            for (int i = 0; i < pockets.size(); i++) {
-                                if (pockets.get(i).isTruePocket()) {
-                                    truePocketPositionsConservation.add(i);
-                                    System.out.printf("conser: %d\n", i);
-                                    truePocketConservationAvg.add(pockets.get(i)
-                                            .getConservationAvg());
-                                } else {
-                                    falsePocketPositionsConservation.add(i);
-                                    falsePocketConservationAvg.add(pockets.get(i)
-                                            .getConservationAvg());
-                                }
-                            }
-
-                            pockets.sort(Comparator.comparing(Pocket::getCombiningScore).reversed
-                                    ());
-                            for (int i = 0; i < pockets.size(); i++) {
-                                if (pockets.get(i).isTruePocket()) {
-                                    truePocketPositionsCombi.add(i);
-                                    System.out.printf("combi: %d\n", i);
-                                } else {
-                                    falsePocketPositionsCombi.add(i);
-                                }
-                            }
-
-                            numberOfPockets.add(pockets.size());
-
-                            System.out.println(comparison.toString());
-                            result.println(comparison.toString());
-                            comparisons.add(comparison);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-//                ConservationComparison all = ConservationComparison.merge(comparisons, origin);
-                result.println();
-//                result.println(all.toString());
-                double avgNumberOfPockets = numberOfPockets.stream().mapToInt(Integer::intValue)
-                        .average().getAsDouble();
-                System.out.printf("\n\nTrue pocket prank rank avg: %f/%f\n",
-                        truePocketPositionsPrank.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("True pocket conservation rank avg: %f/%f\n",
-                        truePocketPositionsConservation.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("True pocket combi rank avg: %f/%f\n",
-                        truePocketPositionsCombi.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("False pocket prank rank avg: %f/%f\n",
-                        falsePocketPositionsPrank.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("False pocket conservation rank avg: %f/%f\n",
-                        falsePocketPositionsConservation.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("False pocket combi rank avg: %f/%f\n",
-                        falsePocketPositionsCombi.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-
-                System.out.printf("\n\nTrue pocket conservation avg: %f\n",
-                        truePocketConservationAvg.stream().mapToDouble(Double::doubleValue)
-                                .average().getAsDouble());
-                System.out.printf("False pocket conservation avg: %f\n",
-                        falsePocketConservationAvg.stream().mapToDouble(Double::doubleValue)
-                                .average().getAsDouble());
-
-//                Function<String, String> trim = s -> s.substring(1, s.length() - 1);
-//                allRaw.println(trim.apply(Arrays.toString(all.getProteinScores())));
-//                allRaw.println(trim.apply(Arrays.toString(all.getNonLigandScores())));
-//                allRaw.println(trim.apply(Arrays.toString(all.getLigandScores())));
 
-                for (int i = 0; i < pocketIsTrue.size(); i++) {
-                    allRaw.printf("%f,%f,%f\n", scores.get(i), conservationScore.get(i),
-                            pocketIsTrue.get(i) ? 1.0 : 0.0);
+    /**
+     * Runs the task for every file on a worker pool and prints the results in the order
+     * of the files. Failed files are reported on stderr and do not stop the run.
+     */
+    private static <T> void runBatch(List<File> files, int threads,
+                                     BatchExecutor.Task<T> task, Consumer<T> printer,
+                                     PrintStream out, PrintStream err)
+            throws InterruptedException {
+        try (BatchExecutor executor = new BatchExecutor(threads)) {
+            int failed = executor.run(files, task, result -> {
+                if (result.isOk()) {
+                    printer.accept(result.getValue());
+                    out.flush();
+                } else {
+                    err.printf("%s: %s\n", result.getFile().getName(),
+                            result.getError().toString());
                 }
+            });
+            if (failed > 0) {
+                err.printf("Failed to process %d of %d files.\n", failed, files.size());
             }
         }
     }
-    */
 }
@@ -1,13 +1,11 @@
 package cz.siret.prank.lib;
 
-import org.biojava.nbio.structure.Structure;
-
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
 
 public class Pocket implements Serializable {
     private String name;
@@ -19,7 +17,7 @@ public class Pocket implements Serializable {
     private float centerY;
     private float centerZ;
     private String[] residueIds;
-    private Integer[] surfAtomIds;
+    private int[] surfAtomIds;
 
     public String getName() {
         return name;
@@ -93,36 +91,24 @@ public class Pocket implements Serializable {
         this.residueIds = residueIds;
     }
 
-    public Integer[] getSurfAtomIds() {
+    public int[] getSurfAtomIds() {
         return surfAtomIds;
     }
 
-    public void setSurfAtomIds(Integer[] surfAtomIds) {
+    public void setSurfAtomIds(int[] surfAtomIds) {
         this.surfAtomIds = surfAtomIds;
     }
 
 
+    /**
+     * Reads all pockets of the prediction, see {@link PocketReader}. The stream is not closed.
+     */
     public static List<Pocket> parseCSVPrediction(InputStream inputStream) {
-        // name,rank,score,connolly_points,surf_atoms,center_x,center_y,center_z,residue_ids,
-        // surf_atom_ids
-        Scanner scanner = new Scanner(inputStream);
-        scanner.nextLine(); // Skip the header line
         List<Pocket> res = new ArrayList<>();
-        while (scanner.hasNextLine()) {
-            Pocket p = new Pocket();
-            String[] tokens = scanner.nextLine().split(",");
-            p.setName(tokens[0]);
-            p.setRank(Integer.parseInt(tokens[1]));
-            p.setScore(Float.parseFloat(tokens[2]));
-            p.setNumOfConnollyPoints(Integer.parseInt(tokens[3]));
-            p.setNumOfSurfaceAtoms(Integer.parseInt(tokens[4]));
-            p.setCenterX(Float.parseFloat(tokens[5]));
-            p.setCenterY(Float.parseFloat(tokens[6]));
-            p.setCenterZ(Float.parseFloat(tokens[7]));
-            p.setResidueIds(Arrays.stream(tokens[8].split(" ")).toArray(String[]::new));
-            p.setSurfAtomIds(Arrays.stream(tokens[9].split(" "))
-                    .map((s) -> Integer.parseInt(s)).toArray(Integer[]::new));
-            res.add(p);
+        try {
+            PocketReader.forEach(inputStream, res::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         return res;
     }
@@ -0,0 +1,122 @@
+package cz.siret.prank.lib;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Conservation of the residues of every pocket of a prediction: mean and maximum of the
+ * scores of the residues that have one, and coverage, the fraction of the residues of the
+ * pocket that have a score.
+ *
+ * All pockets are aggregated in one pass against the {@link ResidueScoreTable} of the
+ * structure, residue ids are looked up directly in its sorted keys without building any
+ * map. The values are kept in primitive arrays in the order of the pockets.
+ */
+public final class PocketConservation {
+    private final int[] residueCounts;
+    private final int[] scoredCounts;
+    private final double[] means;
+    private final double[] maxima;
+
+    private PocketConservation(int[] residueCounts, int[] scoredCounts, double[] means,
+                               double[] maxima) {
+        this.residueCounts = residueCounts;
+        this.scoredCounts = scoredCounts;
+        this.means = means;
+        this.maxima = maxima;
+    }
+
+    public static PocketConservation compute(List<Pocket> pockets, ResidueScoreTable scores) {
+        int n = pockets.size();
+        int[] residueCounts = new int[n];
+        int[] scoredCounts = new int[n];
+        double[] means = new double[n];
+        double[] maxima = new double[n];
+        for (int p = 0; p < n; p++) {
+            String[] residueIds = pockets.get(p).getResidueIds();
+            double sum = 0;
+            double max = Double.NEGATIVE_INFINITY;
+            int scored = 0;
+            if (residueIds != null) {
+                for (String residueId : residueIds) {
+                    int index = scores.indexOfResidueId(residueId);
+                    if (index >= 0) {
+                        double score = scores.getScoreAt(index);
+                        sum += score;
+                        max = Math.max(max, score);
+                        scored++;
+                    }
+                }
+                residueCounts[p] = residueIds.length;
+            }
+            scoredCounts[p] = scored;
+            means[p] = scored > 0 ? sum / scored : Double.NaN;
+            maxima[p] = scored > 0 ? max : Double.NaN;
+        }
+        return new PocketConservation(residueCounts, scoredCounts, means, maxima);
+    }
+
+    public int size() {
+        return means.length;
+    }
+
+    /**
+     * @return mean conservation of the residues of the pocket, NaN if none has a score
+     */
+    public double getMean(int pocket) {
+        return means[pocket];
+    }
+
+    /**
+     * @return maximal conservation of the residues of the pocket, NaN if none has a score
+     */
+    public double getMax(int pocket) {
+        return maxima[pocket];
+    }
+
+    /**
+     * @return fraction of the residues of the pocket that have a score
+     */
+    public double getCoverage(int pocket) {
+        return residueCounts[pocket] > 0
+                ? (double) scoredCounts[pocket] / residueCounts[pocket] : 0;
+    }
+
+    public int getResidueCount(int pocket) {
+        return residueCounts[pocket];
+    }
+
+    public int getScoredCount(int pocket) {
+        return scoredCounts[pocket];
+    }
+
+    public double[] getMeans() {
+        return means.clone();
+    }
+
+    public double[] getMaxima() {
+        return maxima.clone();
+    }
+
+    public double[] getCoverages() {
+        double[] result = new double[size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getCoverage(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return indices of the pockets ordered by the mean conservation from the highest,
+     * pockets without scores are last, ties keep the original order
+     */
+    public int[] rankByMean() {
+        return IntStream.range(0, size()).boxed()
+                .sorted(Comparator.comparingDouble((Integer i) ->
+                        Double.isNaN(means[i]) ? Double.NEGATIVE_INFINITY : means[i])
+                        .reversed())
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+}
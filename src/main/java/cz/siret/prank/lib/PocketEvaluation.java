@@ -0,0 +1,273 @@
+package cz.siret.prank.lib;
+
+import org.biojava.nbio.structure.Structure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import cz.siret.prank.lib.utils.BatchExecutor;
+import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.RunningStats;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Evaluation of re-ranking P2Rank predictions by conservation on a dataset.
+ *
+ * The dataset directory contains for every protein name.pdb, its predictions
+ * name.pdb_predictions.csv and the conservation score files of its chains (nameA.scores in
+ * the JSD format, name_A.scores in the ConCavity format). The dataset statistics CSV lists
+ * the true pockets: the file name in the first column and the rank of the pocket in the
+ * fourth, one line per pocket after a header.
+ *
+ * Pockets are ranked by the P2Rank score (the order of the predictions), by the mean
+ * conservation of their residues (see {@link PocketConservation}) and by the combined
+ * score, P2Rank score times the mean conservation. Proteins are processed in parallel by
+ * {@link BatchExecutor}, every finished protein is written to the raw per-pocket table and
+ * added to running statistics and then dropped, so the memory does not grow with the size
+ * of the dataset.
+ */
+public class PocketEvaluation {
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final String DEFAULT_STATISTICS_FILE = "ranks_rescored.dca4.csv";
+
+    public enum Ranking {
+        PRANK,
+        CONSERVATION,
+        COMBINED
+    }
+
+    private static final int RANKINGS = Ranking.values().length;
+
+    /**
+     * Pockets of one protein, in the order of the predictions.
+     */
+    private static class ProteinResult {
+        String name;
+        String[] pocketNames;
+        int[] ranks;
+        float[] scores;
+        double[] conservation;
+        double[] maxConservation;
+        double[] coverage;
+        boolean[] truePocket;
+        /** Position of every pocket (from 0) in every ranking. */
+        int[][] positions;
+    }
+
+    private final File datasetDir;
+    private final ConservationScore.ScoreFormat format;
+    private final Map<String, int[]> truePockets;
+
+    private final RunningStats[] truePositions = new RunningStats[RANKINGS];
+    private final RunningStats[] falsePositions = new RunningStats[RANKINGS];
+    private final long[] topOneHits = new long[RANKINGS];
+    private final RunningStats trueConservation = new RunningStats();
+    private final RunningStats falseConservation = new RunningStats();
+    private final RunningStats pocketCounts = new RunningStats();
+    private int proteins = 0;
+    private int proteinsWithTruePocket = 0;
+    private int failed = 0;
+
+    public PocketEvaluation(File datasetDir, ConservationScore.ScoreFormat format,
+                            File statisticsFile) throws IOException {
+        this.datasetDir = datasetDir;
+        this.format = format;
+        this.truePockets = loadDatasetStatistics(statisticsFile);
+        for (int r = 0; r < RANKINGS; r++) {
+            truePositions[r] = new RunningStats();
+            falsePositions[r] = new RunningStats();
+        }
+    }
+
+    /**
+     * @return ranks of the true pockets by file name
+     */
+    static Map<String, int[]> loadDatasetStatistics(File datasetStats) throws IOException {
+        Map<String, int[]> result = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(datasetStats))) {
+            String line = br.readLine(); // Skip the header.
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                String[] tokens = line.split(",");
+                // Pocket rank is 4th field in the CSV.
+                int rank = Integer.parseInt(tokens[3].trim());
+                result.merge(tokens[0], new int[]{rank}, (a, b) -> {
+                    int[] merged = Arrays.copyOf(a, a.length + 1);
+                    merged[a.length] = b[0];
+                    return merged;
+                });
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates all PDB files of the dataset directory and writes the per-pocket table.
+     *
+     * @param raw Receives the CSV table, one line per pocket
+     * @return number of proteins that failed
+     */
+    public int run(int threads, PrintWriter raw) throws InterruptedException, IOException {
+        File[] listed = datasetDir.listFiles((dir, name) -> name.endsWith(".pdb"));
+        List<File> files = new ArrayList<>(Arrays.asList(listed != null ? listed : new File[0]));
+        files.sort(Comparator.comparing(File::getName));
+        raw.println("protein,pocket,rank,score,conservation,conservation_max,coverage," +
+                "prank_position,conservation_position,combined_position,true_pocket");
+        try (BatchExecutor executor = new BatchExecutor(threads)) {
+            failed += executor.run(files, this::evaluate, result -> {
+                if (result.isOk()) {
+                    add(result.getValue(), raw);
+                } else {
+                    logger.warn("Failed to evaluate {}: {}", result.getFile().getName(),
+                            result.getError().toString());
+                }
+            });
+        }
+        raw.flush();
+        if (raw.checkError()) {
+            throw new IOException("Failed to write the pocket table");
+        }
+        return failed;
+    }
+
+    private ProteinResult evaluate(File pdbFile) throws IOException {
+        String nameBase = pdbFile.getName().substring(0, pdbFile.getName().length() - 4);
+        String scoreFileFormat = format == ConservationScore.ScoreFormat.ConCavityFormat
+                ? "%s_%s.scores" : "%s%s.scores";
+        Function<String, File> scoreFiles = chainId ->
+                new File(datasetDir, String.format(scoreFileFormat, nameBase, chainId));
+        Structure structure = BioUtils.INSTANCE.loadPdbFile(pdbFile);
+        ConservationScore score = ConservationScore.fromFiles(structure, scoreFiles, format);
+        List<Pocket> pockets;
+        try (InputStream in = Utils.INSTANCE.readFile(
+                new File(datasetDir, nameBase + ".pdb_predictions.csv"))) {
+            pockets = Pocket.parseCSVPrediction(in);
+        }
+        PocketConservation conservation = PocketConservation.compute(pockets,
+                score != null ? score.getScoreTable() : ResidueScoreTable.builder().build());
+        if (score == null) {
+            logger.warn("No conservation scores for {}", pdbFile.getName());
+        }
+
+        int n = pockets.size();
+        int[] trueRanks = truePockets.getOrDefault(pdbFile.getName(), new int[0]);
+        ProteinResult result = new ProteinResult();
+        result.name = pdbFile.getName();
+        result.pocketNames = new String[n];
+        result.ranks = new int[n];
+        result.scores = new float[n];
+        result.truePocket = new boolean[n];
+        result.conservation = conservation.getMeans();
+        result.maxConservation = conservation.getMaxima();
+        result.coverage = conservation.getCoverages();
+        double[] combined = new double[n];
+        for (int i = 0; i < n; i++) {
+            Pocket pocket = pockets.get(i);
+            result.pocketNames[i] = pocket.getName();
+            result.ranks[i] = pocket.getRank();
+            result.scores[i] = pocket.getScore();
+            for (int rank : trueRanks) {
+                result.truePocket[i] |= rank == pocket.getRank();
+            }
+            double c = result.conservation[i];
+            combined[i] = pocket.getScore() * (Double.isNaN(c) ? 0 : c);
+        }
+        result.positions = new int[RANKINGS][];
+        result.positions[Ranking.PRANK.ordinal()] = IntStream.range(0, n).toArray();
+        result.positions[Ranking.CONSERVATION.ordinal()] = positions(conservation.rankByMean());
+        result.positions[Ranking.COMBINED.ordinal()] = positions(IntStream.range(0, n).boxed()
+                .sorted(Comparator.comparingDouble((Integer i) -> combined[i]).reversed())
+                .mapToInt(Integer::intValue).toArray());
+        return result;
+    }
+
+    /**
+     * @param order Indices of the pockets in the order of a ranking
+     * @return position of every pocket in the ranking
+     */
+    private static int[] positions(int[] order) {
+        int[] positions = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            positions[order[i]] = i;
+        }
+        return positions;
+    }
+
+    private void add(ProteinResult result, PrintWriter raw) {
+        proteins++;
+        int n = result.scores.length;
+        pocketCounts.add(n);
+        boolean hasTrue = false;
+        for (int i = 0; i < n; i++) {
+            boolean isTrue = result.truePocket[i];
+            hasTrue |= isTrue;
+            for (int r = 0; r < RANKINGS; r++) {
+                int position = result.positions[r][i];
+                (isTrue ? truePositions[r] : falsePositions[r]).add(position);
+                if (isTrue && position == 0) topOneHits[r]++;
+            }
+            (isTrue ? trueConservation : falseConservation).add(result.conservation[i]);
+            raw.printf(Locale.ROOT, "%s,%s,%d,%.4f,%.4f,%.4f,%.4f,%d,%d,%d,%d\n", result.name,
+                    result.pocketNames[i], result.ranks[i], result.scores[i],
+                    result.conservation[i],
+                    result.maxConservation[i], result.coverage[i],
+                    result.positions[Ranking.PRANK.ordinal()][i],
+                    result.positions[Ranking.CONSERVATION.ordinal()][i],
+                    result.positions[Ranking.COMBINED.ordinal()][i], isTrue ? 1 : 0);
+        }
+        if (hasTrue) proteinsWithTruePocket++;
+    }
+
+    public RunningStats getTruePositions(Ranking ranking) {
+        return truePositions[ranking.ordinal()];
+    }
+
+    public RunningStats getFalsePositions(Ranking ranking) {
+        return falsePositions[ranking.ordinal()];
+    }
+
+    /**
+     * @return fraction of the proteins with a true pocket that have a true pocket first
+     */
+    public double getTopOneSuccessRate(Ranking ranking) {
+        return proteinsWithTruePocket > 0
+                ? (double) topOneHits[ranking.ordinal()] / proteinsWithTruePocket : Double.NaN;
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Proteins: %d (%d with a true pocket, %d failed)\n",
+                proteins, proteinsWithTruePocket, failed));
+        sb.append(String.format(Locale.ROOT, "Pockets per protein: %s\n", pocketCounts));
+        for (Ranking ranking : Ranking.values()) {
+            String name = ranking.name().toLowerCase();
+            sb.append(String.format(Locale.ROOT, "True pocket %s position: %s\n", name,
+                    getTruePositions(ranking)));
+            sb.append(String.format(Locale.ROOT, "False pocket %s position: %s\n", name,
+                    getFalsePositions(ranking)));
+            sb.append(String.format(Locale.ROOT, "Top-1 success rate %s: %.4f\n", name,
+                    getTopOneSuccessRate(ranking)));
+        }
+        sb.append(String.format(Locale.ROOT, "True pocket conservation: %s\n",
+                trueConservation));
+        sb.append(String.format(Locale.ROOT, "False pocket conservation: %s\n",
+                falseConservation));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,333 @@
+package cz.siret.prank.lib;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming reader of P2Rank pocket predictions (*_predictions.csv).
+ *
+ * Pockets are read one record at a time, so the file is never loaded whole. Fields are
+ * copied into a reusable character buffer and numbers are parsed directly from it, surface
+ * atom ids end up in a primitive int[]. Quoted fields and gzipped input (detected by the
+ * gzip magic bytes) are supported. The first line is the header and is skipped.
+ */
+public class PocketReader implements Iterator<Pocket>, Closeable {
+    // name,rank,score,connolly_points,surf_atoms,center_x,center_y,center_z,residue_ids,
+    // surf_atom_ids
+    private static final int FIELDS = 10;
+
+    private final Reader reader;
+    private final char[] buffer = new char[1 << 16];
+    private int bufferPos = 0;
+    private int bufferEnd = 0;
+
+    // Current record, the unescaped fields are stored one after another.
+    private char[] record = new char[1 << 12];
+    private int recordLength;
+    private int[] fieldStart = new int[FIELDS];
+    private int[] fieldEnd = new int[FIELDS];
+    private int fieldCount;
+
+    private Pocket next;
+    private boolean eof = false;
+
+    public PocketReader(InputStream inputStream) throws IOException {
+        InputStream in = new BufferedInputStream(inputStream, 1 << 16);
+        in.mark(2);
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+        if (b1 == 0x1f && b2 == 0x8b) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        this.reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        readRecord(); // Skip the header line
+    }
+
+    public static PocketReader open(File file) throws IOException {
+        return new PocketReader(new FileInputStream(file));
+    }
+
+    /**
+     * Reads all pockets of the stream, the stream is not closed.
+     */
+    public static void forEach(InputStream inputStream, Consumer<Pocket> consumer)
+            throws IOException {
+        PocketReader reader = new PocketReader(inputStream);
+        try {
+            while (reader.hasNext()) {
+                consumer.accept(reader.next());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !eof) {
+            try {
+                next = readPocket();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Pocket next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Pocket result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private Pocket readPocket() throws IOException {
+        while (readRecord()) {
+            if (recordLength == 0 && fieldCount <= 1) continue; // Empty line
+            Pocket p = new Pocket();
+            p.setName(fieldString(0));
+            p.setRank(fieldInt(1));
+            p.setScore(fieldFloat(2));
+            p.setNumOfConnollyPoints(fieldInt(3));
+            p.setNumOfSurfaceAtoms(fieldInt(4));
+            p.setCenterX(fieldFloat(5));
+            p.setCenterY(fieldFloat(6));
+            p.setCenterZ(fieldFloat(7));
+            p.setResidueIds(fieldStrings(8));
+            p.setSurfAtomIds(fieldInts(9));
+            return p;
+        }
+        eof = true;
+        return null;
+    }
+
+    private int read() throws IOException {
+        if (bufferPos == bufferEnd) {
+            bufferEnd = reader.read(buffer, 0, buffer.length);
+            bufferPos = 0;
+            if (bufferEnd <= 0) {
+                bufferEnd = 0;
+                return -1;
+            }
+        }
+        return buffer[bufferPos++];
+    }
+
+    private void append(char c) {
+        if (recordLength == record.length) {
+            record = Arrays.copyOf(record, record.length * 2);
+        }
+        record[recordLength++] = c;
+    }
+
+    private void endField() {
+        fieldEnd[fieldCount] = recordLength;
+        fieldCount++;
+        if (fieldCount == fieldStart.length) {
+            fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+            fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+        }
+        fieldStart[fieldCount] = recordLength;
+    }
+
+    /**
+     * Reads one CSV record into the record buffer.
+     *
+     * @return false if the end of the input was reached before any character was read
+     */
+    private boolean readRecord() throws IOException {
+        recordLength = 0;
+        fieldCount = 0;
+        fieldStart[0] = 0;
+        int c = read();
+        if (c == -1) return false;
+        boolean quoted = false;
+        while (c != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    c = read();
+                    if (c == '"') {
+                        append('"'); // Escaped quote
+                    } else {
+                        quoted = false;
+                        continue;
+                    }
+                } else {
+                    append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                endField();
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                append((char) c);
+            }
+            c = read();
+        }
+        endField();
+        return true;
+    }
+
+    private int trimStart(int field) {
+        int i = fieldStart[field];
+        while (i < fieldEnd[field] && record[i] == ' ') i++;
+        return i;
+    }
+
+    private int trimEnd(int field) {
+        int i = fieldEnd[field];
+        while (i > fieldStart[field] && record[i - 1] == ' ') i--;
+        return i;
+    }
+
+    private String fieldString(int field) {
+        if (field >= fieldCount) return "";
+        int start = trimStart(field);
+        return new String(record, start, trimEnd(field) - start);
+    }
+
+    private int fieldInt(int field) {
+        if (field >= fieldCount) return 0;
+        return parseInt(record, trimStart(field), trimEnd(field));
+    }
+
+    private float fieldFloat(int field) {
+        if (field >= fieldCount) return 0;
+        return (float) parseDouble(record, trimStart(field), trimEnd(field));
+    }
+
+    private String[] fieldStrings(int field) {
+        if (field >= fieldCount) return new String[0];
+        int start = trimStart(field), end = trimEnd(field);
+        String[] result = new String[countTokens(record, start, end)];
+        int n = 0;
+        int i = start;
+        while (i < end) {
+            while (i < end && record[i] == ' ') i++;
+            int tokenStart = i;
+            while (i < end && record[i] != ' ') i++;
+            if (i > tokenStart) {
+                result[n++] = new String(record, tokenStart, i - tokenStart);
+            }
+        }
+        return result;
+    }
+
+    private int[] fieldInts(int field) {
+        if (field >= fieldCount) return new int[0];
+        int start = trimStart(field), end = trimEnd(field);
+        int[] result = new int[countTokens(record, start, end)];
+        int n = 0;
+        int i = start;
+        while (i < end) {
+            while (i < end && record[i] == ' ') i++;
+            int tokenStart = i;
+            while (i < end && record[i] != ' ') i++;
+            if (i > tokenStart) {
+                result[n++] = parseInt(record, tokenStart, i);
+            }
+        }
+        return result;
+    }
+
+    private static int countTokens(char[] chars, int start, int end) {
+        int count = 0;
+        boolean inToken = false;
+        for (int i = start; i < end; i++) {
+            boolean separator = chars[i] == ' ';
+            if (!separator && !inToken) count++;
+            inToken = !separator;
+        }
+        return count;
+    }
+
+    private static int parseInt(char[] chars, int start, int end) {
+        if (start >= end) {
+            throw new NumberFormatException("Empty number");
+        }
+        boolean negative = chars[start] == '-';
+        int i = negative || chars[start] == '+' ? start + 1 : start;
+        if (i >= end) {
+            throw new NumberFormatException(new String(chars, start, end - start));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = chars[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException(new String(chars, start, end - start));
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException(new String(chars, start, end - start));
+        }
+        return (int) value;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * Parses plain decimal numbers (at most 15 significant digits, no exponent) without
+     * allocation, the result is exact since both the mantissa and the power of ten are
+     * exactly representable. Anything else goes through Double.parseDouble.
+     */
+    private static double parseDouble(char[] chars, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int significantDigits = 0;
+        int fractionDigits = 0;
+        boolean dot = false;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (mantissa != 0) significantDigits++;
+                if (dot) fractionDigits++;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                break;
+            }
+        }
+        if (i < end || digits == 0 || significantDigits > 15
+                || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(new String(chars, start, end - start));
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,239 @@
+package cz.siret.prank.lib;
+
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.ResidueNumber;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable map from residues to scores.
+ *
+ * Residues are keyed by packed (chain, seqNum, insCode) longs kept in a sorted primitive
+ * array, scores are kept in a parallel double array. Lookups do a binary search and
+ * allocate nothing. Since the table never changes after it is built, it can be read by
+ * any number of threads without locking.
+ *
+ * Blank chain ids are treated as chain "A", as everywhere else in the library.
+ */
+public final class ResidueScoreTable implements Serializable {
+    private final String[] chainIds;
+    private final long[] keys;
+    private final double[] scores;
+
+    private ResidueScoreTable(String[] chainIds, long[] keys, double[] scores) {
+        this.chainIds = chainIds;
+        this.keys = keys;
+        this.scores = scores;
+    }
+
+    /**
+     * Table from the arrays stored by {@link BinaryFormat}, the arrays are not copied.
+     */
+    static ResidueScoreTable fromColumns(String[] chainIds, long[] keys, double[] scores) {
+        if (keys.length != scores.length) {
+            throw new IllegalArgumentException("Keys and scores differ in length");
+        }
+        return new ResidueScoreTable(chainIds, keys, scores);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final Map<String, TreeMap<Long, Double>> chains = new HashMap<>();
+
+        private Builder() {
+        }
+
+        public Builder put(ResidueNumber residueNumber, double score) {
+            return put(residueNumber.getChainId(), seqNum(residueNumber),
+                    insCode(residueNumber), score);
+        }
+
+        public Builder put(String chainId, int seqNum, char insCode, double score) {
+            chains.computeIfAbsent(normalizeChainId(chainId), k -> new TreeMap<>())
+                    .put(residueKey(seqNum, insCode == ' ' ? 0 : insCode), score);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return chains.isEmpty();
+        }
+
+        public ResidueScoreTable build() {
+            String[] chainIds = chains.keySet().toArray(new String[0]);
+            Arrays.sort(chainIds);
+            int size = chains.values().stream().mapToInt(Map::size).sum();
+            long[] keys = new long[size];
+            double[] scores = new double[size];
+            int i = 0;
+            for (int chainIndex = 0; chainIndex < chainIds.length; chainIndex++) {
+                for (Map.Entry<Long, Double> e : chains.get(chainIds[chainIndex]).entrySet()) {
+                    keys[i] = ((long) chainIndex << 48) | e.getKey();
+                    scores[i] = e.getValue();
+                    i++;
+                }
+            }
+            return new ResidueScoreTable(chainIds, keys, scores);
+        }
+    }
+
+    /**
+     * Packs seqNum and insertion code into the lower 48 bits, ordered by seqNum first.
+     */
+    private static long residueKey(int seqNum, char insCode) {
+        return (((long) seqNum - Integer.MIN_VALUE) << 16) | insCode;
+    }
+
+    private static String normalizeChainId(String chainId) {
+        return chainId == null || chainId.trim().isEmpty() ? "A" : chainId;
+    }
+
+    private static int seqNum(ResidueNumber residueNumber) {
+        Integer seqNum = residueNumber.getSeqNum();
+        return seqNum == null ? 0 : seqNum;
+    }
+
+    private static char insCode(ResidueNumber residueNumber) {
+        Character insCode = residueNumber.getInsCode();
+        return insCode == null || insCode == ' ' ? 0 : insCode;
+    }
+
+    private int chainIndex(String chainId) {
+        if (chainId == null || chainId.trim().isEmpty()) chainId = "A";
+        return Arrays.binarySearch(chainIds, chainId);
+    }
+
+    private int indexOf(int chainIndex, int seqNum, char insCode) {
+        if (chainIndex < 0) return -1;
+        int index = Arrays.binarySearch(keys,
+                ((long) chainIndex << 48) | residueKey(seqNum, insCode));
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * @return index of the residue in this table, or -1 if there is no score for it
+     */
+    public int indexOf(String chainId, int seqNum, char insCode) {
+        return indexOf(chainIndex(chainId), seqNum, insCode == ' ' ? 0 : insCode);
+    }
+
+    /**
+     * Parses the residue id of a pocket (chain_seqNum[insCode], e.g. A_123 or A_123B) without
+     * allocating.
+     *
+     * @return index of the residue in this table, or -1 if there is no score for it or the
+     * id is malformed
+     */
+    public int indexOfResidueId(String residueId) {
+        int separator = residueId.lastIndexOf('_');
+        if (separator < 0) return -1;
+        int chainIndex = chainIndex(residueId, separator);
+        if (chainIndex < 0) return -1;
+        int i = separator + 1;
+        int end = residueId.length();
+        boolean negative = i < end && residueId.charAt(i) == '-';
+        if (negative) i++;
+        int digitsStart = i;
+        long seqNum = 0;
+        while (i < end && i - digitsStart < 10 && Character.isDigit(residueId.charAt(i))) {
+            seqNum = seqNum * 10 + (residueId.charAt(i++) - '0');
+        }
+        if (i == digitsStart || end - i > 1 || seqNum > Integer.MAX_VALUE) return -1;
+        char insCode = i < end ? residueId.charAt(i) : 0;
+        return indexOf(chainIndex, (int) (negative ? -seqNum : seqNum),
+                insCode == ' ' ? 0 : insCode);
+    }
+
+    /**
+     * @return index of the chain given by the first length characters of the string
+     */
+    private int chainIndex(String s, int length) {
+        boolean blank = true;
+        for (int i = 0; i < length && blank; i++) {
+            blank = s.charAt(i) == ' ';
+        }
+        if (blank) return chainIndex("A");
+        for (int c = 0; c < chainIds.length; c++) {
+            if (chainIds[c].length() == length && s.regionMatches(0, chainIds[c], 0, length)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    public int indexOf(ResidueNumber residueNumber) {
+        return indexOf(chainIndex(residueNumber.getChainId()), seqNum(residueNumber),
+                insCode(residueNumber));
+    }
+
+    public double getScore(ResidueNumber residueNumber, double defaultValue) {
+        int index = indexOf(residueNumber);
+        return index >= 0 ? scores[index] : defaultValue;
+    }
+
+    public double getScore(String chainId, int seqNum, char insCode, double defaultValue) {
+        int index = indexOf(chainId, seqNum, insCode);
+        return index >= 0 ? scores[index] : defaultValue;
+    }
+
+    public double getScoreAt(int index) {
+        return scores[index];
+    }
+
+    /**
+     * Bulk lookup of all groups of one chain, the chain id is resolved only once.
+     *
+     * @param chainId      Chain of the groups
+     * @param groups       Groups to look up
+     * @param defaultValue Score used for groups without a score
+     * @return scores in the order of the groups
+     */
+    public double[] getScores(String chainId, List<Group> groups, double defaultValue) {
+        double[] result = new double[groups.size()];
+        int chainIndex = chainIndex(chainId);
+        for (int i = 0; i < result.length; i++) {
+            ResidueNumber residueNumber = groups.get(i).getResidueNumber();
+            int index = indexOf(chainIndex, seqNum(residueNumber), insCode(residueNumber));
+            result[i] = index >= 0 ? scores[index] : defaultValue;
+        }
+        return result;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    String[] getChainIds() {
+        return chainIds;
+    }
+
+    long[] getKeys() {
+        return keys;
+    }
+
+    double[] getScores() {
+        return scores;
+    }
+
+    /**
+     * @return copy of the table as a map from residue numbers to scores
+     */
+    public Map<ResidueNumberWrapper, Double> toMap() {
+        Map<ResidueNumberWrapper, Double> result = new HashMap<>(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            int seqNum = (int) (((keys[i] >>> 16) & 0xFFFFFFFFL) + Integer.MIN_VALUE);
+            char insCode = (char) (keys[i] & 0xFFFF);
+            ResidueNumber residueNumber = new ResidueNumber(chainIds[(int) (keys[i] >>> 48)],
+                    seqNum, insCode == 0 ? null : insCode);
+            result.put(new ResidueNumberWrapper(residueNumber), scores[i]);
+        }
+        return result;
+    }
+}
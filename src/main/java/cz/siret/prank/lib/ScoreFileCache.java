@@ -0,0 +1,107 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of parsed conservation score files shared by all {@link ConservationScore}
+ * entry points, so that a score file is parsed only once even if it is a candidate for
+ * many chains.
+ *
+ * Entries are keyed by absolute path, size, modification time and format, so a file that
+ * changes on disk is parsed again. The memory used by the entries is estimated and kept
+ * under a budget (system property prank.scoreCache.maxBytes, 64 MB by default).
+ */
+public enum ScoreFileCache {
+    INSTANCE;
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    @FunctionalInterface
+    interface Loader {
+        ChainScores load(File file, ConservationScore.ScoreFormat format) throws IOException;
+    }
+
+    private static final class Key {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final ConservationScore.ScoreFormat format;
+
+        private Key(File file, ConservationScore.ScoreFormat format) {
+            this.path = file.getAbsolutePath();
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return size == key.size && lastModified == key.lastModified
+                    && path.equals(key.path) && format == key.format;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + Long.hashCode(size);
+            result = 31 * result + Long.hashCode(lastModified);
+            result = 31 * result + format.hashCode();
+            return result;
+        }
+    }
+
+    private final Map<Key, ChainScores> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes = Long.getLong("prank.scoreCache.maxBytes", 64L << 20);
+    private long usedBytes = 0;
+
+    /**
+     * @return parsed scores, loaded by the loader on a cache miss
+     */
+    ChainScores get(File file, ConservationScore.ScoreFormat format, Loader loader)
+            throws IOException {
+        Key key = new Key(file, format);
+        synchronized (this) {
+            ChainScores cached = entries.get(key);
+            if (cached != null) {
+                logger.debug("Score file cache hit [{}]", key.path);
+                return cached;
+            }
+        }
+        ChainScores parsed = loader.load(file, format);
+        synchronized (this) {
+            ChainScores previous = entries.put(key, parsed);
+            usedBytes += parsed.estimateBytes()
+                    - (previous != null ? previous.estimateBytes() : 0);
+            evict();
+        }
+        return parsed;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    private void evict() {
+        Iterator<ChainScores> it = entries.values().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            usedBytes -= it.next().estimateBytes();
+            it.remove();
+        }
+    }
+}
@@ -104,15 +104,17 @@ public class Sequence implements Serializable {
             if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) continue;
             String chainId = chain.getChainID().trim().isEmpty() ? "A" : chain.getChainID();
             int start = indices.size();
-            for (Group group : chain.getAtomGroups(GroupType.AMINOACID)) {
+            List<Group> groups = chain.getAtomGroups(GroupType.AMINOACID);
+            double[] chainScores = score != null && score.size() > 0
+                    ? score.getScoresForChain(chain.getChainID(), groups) : null;
+            for (int i = 0; i < groups.size(); i++) {
+                Group group = groups.get(i);
                 String c = group.getChemComp().getOne_letter_code();
                 if (!c.equals("?")) {
                     seq.add(c);
                     ResidueNumberWrapper resNum = new ResidueNumberWrapper(group.getResidueNumber());
-                    String insCode = resNum.getResNum().getInsCode() == null
-                            ? "" : resNum.getResNum().getInsCode().toString();
-                    if (score != null && score.size() > 0) {
-                        conservationScores.add(score.getScoreForResidue(resNum));
+                    if (chainScores != null) {
+                        conservationScores.add(chainScores[i]);
                     }
                     indices.add(resNum.getResNum().printFull());
                     if (bindingSites != null && bindingSites.contains(resNum)) {
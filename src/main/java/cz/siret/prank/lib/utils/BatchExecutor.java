@@ -0,0 +1,137 @@
+package cz.siret.prank.lib.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs a per-file task over many input files on a fixed worker pool.
+ *
+ * Results are handed to the consumer in the order of the input list as soon as
+ * they (and all files before them) are finished. Only a bounded number of tasks
+ * is in flight at a time, so memory does not grow with the number of files.
+ * A failure of one file is reported in its result and does not stop the batch.
+ */
+public class BatchExecutor implements AutoCloseable {
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    @FunctionalInterface
+    public interface Task<T> {
+        T apply(File file) throws Exception;
+    }
+
+    public static class Result<T> {
+        private final File file;
+        private final T value;
+        private final Exception error;
+
+        private Result(File file, T value, Exception error) {
+            this.file = file;
+            this.value = value;
+            this.error = error;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+
+    public BatchExecutor(int threads) {
+        int n = threads > 0 ? threads : defaultThreads();
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "batch-worker-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = Executors.newFixedThreadPool(n, factory);
+        this.maxInFlight = n * 4;
+    }
+
+    public static int defaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @param files    Input files, results are emitted in this order
+     * @param task     Work done for each file (runs on the worker pool)
+     * @param consumer Receives results on the calling thread
+     * @return number of files that failed
+     */
+    public <T> int run(List<File> files, Task<T> task, Consumer<Result<T>> consumer)
+            throws InterruptedException {
+        Deque<Future<Result<T>>> pending = new ArrayDeque<>(maxInFlight);
+        int failed = 0;
+        for (File file : files) {
+            if (pending.size() >= maxInFlight) {
+                failed += emit(pending.poll(), consumer);
+            }
+            pending.add(executor.submit(() -> {
+                try {
+                    return new Result<>(file, task.apply(file), null);
+                } catch (Exception e) {
+                    return new Result<>(file, null, e);
+                }
+            }));
+        }
+        while (!pending.isEmpty()) {
+            failed += emit(pending.poll(), consumer);
+        }
+        return failed;
+    }
+
+    private <T> int emit(Future<Result<T>> future, Consumer<Result<T>> consumer)
+            throws InterruptedException {
+        Result<T> result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            // The task wrapper catches exceptions, so only errors end up here.
+            throw new IllegalStateException(e.getCause());
+        }
+        if (!result.isOk()) {
+            logger.warn("Processing of {} failed: {}", result.getFile().getAbsolutePath(),
+                    result.getError().toString());
+        }
+        consumer.accept(result);
+        return result.isOk() ? 0 : 1;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
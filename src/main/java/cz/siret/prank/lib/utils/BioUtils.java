@@ -28,17 +28,36 @@ public enum BioUtils {
 
     private final transient Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Same as pdbToFasta(loadPdbFile(pdbFile), null), but only scans the residue names
+     * (see {@link PdbScanner}) instead of building the structure.
+     */
     public Map<String, String> pdbToFasta(File pdbFile) throws IOException,
             StructureException {
-        return pdbToFasta(loadPdbFile(pdbFile), null);
+        PdbScanner.Result scan = PdbScanner.scan(pdbFile);
+        Map<String, String> output = new HashMap<>();
+        String header = ">" + scan.getIdCode() + ":";
+        for (PdbScanner.ChainInfo chain : scan.getChains()) {
+            String chId = chain.getChainId().trim().isEmpty() ? "A" : chain.getChainId();
+            if (chain.getAminoAcidCount() <= 0) continue;
+            String chainFasta = sequenceToFasta(chain.getSequence(), header, chain.getChainId());
+            if (chainFasta != null) {
+                output.put(chId, chainFasta);
+            }
+        }
+        return output;
     }
 
     public String chainToFasta(Chain chain, String header) {
+        return sequenceToFasta(chain.getAtomSequence(), header, chain.getChainID());
+    }
+
+    private String sequenceToFasta(String sequence, String header, String chainId) {
         StringBuilder result = new StringBuilder();
-        String seq = chain.getAtomSequence().trim();
+        String seq = sequence.trim();
         if (seq.length() == 0) return null;
         // Print the header like this: >4X09:A
-        result.append(header).append(chain.getChainID()).append('\n');
+        result.append(header).append(chainId).append('\n');
         // Print the chain sequence and wrap lines at 80 characters
         for (int i = 0; i < seq.length(); i++) {
             if (i != 0 && i % 80 == 0) result.append('\n');
@@ -47,11 +66,22 @@ public enum BioUtils {
         return result.toString();
     }
 
+    /**
+     * Loads the structure through the {@link StructureCache}, the returned structure may be
+     * shared with other callers and must not be modified.
+     */
     public Structure loadPdbFile(File pdbFile) throws IOException {
-        logger.info("Loading pdb file [{}]", pdbFile.getAbsolutePath());
+        return StructureCache.INSTANCE.get(pdbFile, this::parsePdbFile);
+    }
+
+    private Structure parsePdbFile(File pdbFile) throws IOException {
+        logger.debug("Loading pdb file [{}]", pdbFile.getAbsolutePath());
+        long start = Metrics.INSTANCE.start();
         PDBFileReader pdbReader = new PDBFileReader();
         try (InputStream inputStream = Utils.INSTANCE.readFile(pdbFile)) {
-            return pdbReader.getStructure(inputStream);
+            Structure structure = pdbReader.getStructure(inputStream);
+            Metrics.INSTANCE.record(Metrics.PDB_PARSE, null, start, pdbFile.length());
+            return structure;
         }
     }
 
@@ -153,6 +183,13 @@ public enum BioUtils {
         return resCount;
     }
 
+    /**
+     * Same as getProteinSize(loadPdbFile(pdbFile)), computed by {@link PdbScanner}.
+     */
+    public int getProteinSize(File pdbFile) throws IOException {
+        return PdbScanner.scan(pdbFile).getProteinSize();
+    }
+
     public String getChainsPDB(File pdbFile, Set<String> chains) throws StructureException, IOException {
         Structure protein = loadPdbFile(pdbFile);
         FileConvert fileConvert = new FileConvert(protein);
@@ -166,14 +203,7 @@ public enum BioUtils {
 
     public String checkForPdbFileErrors(File pdbFile) {
         try {
-            Structure protein = loadPdbFile(pdbFile);
-            boolean hasAminoChains = false;
-            for (Chain chain : protein.getChains()) {
-                if (chain.getAtomGroups(GroupType.AMINOACID).size() > 0) {
-                    hasAminoChains = true;
-                    break;
-                }
-            }
+            boolean hasAminoChains = PdbScanner.scan(pdbFile).hasAminoAcidChain();
             return hasAminoChains ? null : "The PDB file does not contain any protein structure.";
         } catch (Exception e) {
             return "Failed to load PDB file. ".concat(e.toString());
@@ -0,0 +1,65 @@
+package cz.siret.prank.lib.utils;
+
+import java.util.Arrays;
+
+/**
+ * Length of the longest common subsequence computed with 64-bit word parallelism
+ * (Allison-Dix / Crochemore et al. bit-vector algorithm).
+ *
+ * Runs in O(n * m / 64) time and needs O(m / 64) memory per distinct symbol of the
+ * shorter sequence, instead of the O(n * m) matrix of the dynamic programming version.
+ * Use it when only the length is needed; a backtrack still needs the full matrix.
+ * Sequences are encoded by {@link ResidueEncoding}.
+ */
+public final class BitParallelLcs {
+
+    public static int length(byte[] a, byte[] b) {
+        // Bit-vectors are built over the shorter sequence.
+        if (a.length > b.length) {
+            byte[] tmp = a;
+            a = b;
+            b = tmp;
+        }
+        int m = a.length;
+        if (m == 0) return 0;
+        int words = (m + 63) >>> 6;
+
+        // Match masks: bit i of masks[c] is set iff a[i] == c.
+        long[][] masks = new long[256][];
+        for (int i = 0; i < m; i++) {
+            int c = a[i] & 0xFF;
+            if (masks[c] == null) {
+                masks[c] = new long[words];
+            }
+            masks[c][i >>> 6] |= 1L << (i & 63);
+        }
+
+        long[] v = new long[words];
+        Arrays.fill(v, -1L);
+        for (int j = 0; j < b.length; j++) {
+            long[] mask = masks[b[j] & 0xFF];
+            if (mask == null) continue; // No match, the vector stays the same.
+            long carry = 0;
+            for (int k = 0; k < words; k++) {
+                long x = v[k];
+                long u = x & mask[k];
+                long sum = x + u + carry;
+                carry = ((x & u) | ((x | u) & ~sum)) >>> 63;
+                v[k] = sum | (x & ~mask[k]);
+            }
+        }
+
+        // LCS length is the number of zero bits among the first m bits.
+        int ones = 0;
+        for (int k = 0; k < words - 1; k++) {
+            ones += Long.bitCount(v[k]);
+        }
+        int tail = m & 63;
+        long last = tail == 0 ? v[words - 1] : v[words - 1] & ((1L << tail) - 1);
+        ones += Long.bitCount(last);
+        return m - ones;
+    }
+
+    // static utility class
+    private BitParallelLcs() {}
+}
@@ -0,0 +1,88 @@
+package cz.siret.prank.lib.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Pools of large I/O buffers and per-thread inflaters shared by the stream helpers of
+ * {@link Utils}, so that reading many small files does not allocate (and for direct buffers
+ * also free) the same memory over and over.
+ */
+public final class BufferPool {
+    public static final int BUFFER_SIZE = 256 * 1024;
+    /** Maximum number of idle buffers of each kind kept in the pool. */
+    private static final int MAX_POOLED = 64;
+
+    private static final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger directCount = new AtomicInteger();
+    private static final Queue<byte[]> arrays = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger arrayCount = new AtomicInteger();
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<>();
+
+    public static ByteBuffer acquireDirect() {
+        ByteBuffer buffer = directBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        directCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == BUFFER_SIZE
+                && directCount.incrementAndGet() <= MAX_POOLED) {
+            directBuffers.add(buffer);
+        } else if (buffer.isDirect() && buffer.capacity() == BUFFER_SIZE) {
+            directCount.decrementAndGet();
+        }
+    }
+
+    public static byte[] acquireArray() {
+        byte[] array = arrays.poll();
+        if (array == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        arrayCount.decrementAndGet();
+        return array;
+    }
+
+    public static void release(byte[] array) {
+        if (array.length == BUFFER_SIZE && arrayCount.incrementAndGet() <= MAX_POOLED) {
+            arrays.add(array);
+        } else if (array.length == BUFFER_SIZE) {
+            arrayCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return inflater for raw deflate data, the one cached by the current thread if any
+     */
+    public static Inflater acquireInflater() {
+        Inflater inflater = inflaters.get();
+        if (inflater == null) {
+            return new Inflater(true);
+        }
+        inflaters.set(null);
+        return inflater;
+    }
+
+    /**
+     * Resets the inflater and caches it for the current thread, or ends it if the thread
+     * already has one.
+     */
+    public static void release(Inflater inflater) {
+        if (inflaters.get() == null) {
+            inflater.reset();
+            inflaters.set(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+
+    // static utility class
+    private BufferPool() {}
+}
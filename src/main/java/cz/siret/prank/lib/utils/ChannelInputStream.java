@@ -0,0 +1,105 @@
+package cz.siret.prank.lib.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Input stream reading a file through its FileChannel into a pooled direct buffer
+ * (see {@link BufferPool}). The rest of the file can be copied to another channel without
+ * passing through the heap, see {@link #transferTo(WritableByteChannel)}.
+ */
+public class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+
+    public ChannelInputStream(FileChannel channel) {
+        this.channel = channel;
+        this.buffer = BufferPool.acquireDirect();
+        buffer.flip(); // Empty
+    }
+
+    public static ChannelInputStream open(File file) throws IOException {
+        return new ChannelInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    private boolean fill() throws IOException {
+        if (buffer == null) throw new IOException("Stream closed");
+        if (buffer.hasRemaining()) return true;
+        buffer.clear();
+        int n = channel.read(buffer);
+        buffer.flip();
+        return n > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || buffer == null) return 0;
+        long skipped = Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + (int) skipped);
+        if (skipped < n) {
+            long position = channel.position();
+            long target = Math.min(channel.size(), position + n - skipped);
+            channel.position(target);
+            skipped += target - position;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (buffer == null) return 0;
+        long rest = buffer.remaining() + channel.size() - channel.position();
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, rest));
+    }
+
+    /**
+     * Writes the rest of the stream to the target channel.
+     *
+     * @return number of bytes written
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (buffer == null) throw new IOException("Stream closed");
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer);
+        }
+        long position = channel.position();
+        long size = channel.size();
+        while (position < size) {
+            long n = channel.transferTo(position, size - position, target);
+            if (n <= 0) break;
+            position += n;
+            written += n;
+        }
+        channel.position(position);
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+        channel.close();
+    }
+}
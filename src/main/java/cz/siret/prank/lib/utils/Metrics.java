@@ -0,0 +1,377 @@
+package cz.siret.prank.lib.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide metrics of the processing stages: number of runs, failures, bytes processed
+ * and a latency histogram for every stage and chain, plus plain named counters.
+ *
+ * Recording is a map lookup and a few {@link LongAdder} increments, so it is cheap enough
+ * for every file and chain. It can be turned off by the system property
+ * prank.metrics=false. A {@link Snapshot} of the values can be exported as JSON or in the
+ * Prometheus text format (see the metrics command of Main).
+ */
+public enum Metrics {
+    INSTANCE;
+
+    public static final String HSSP_READ = "hssp_read";
+    public static final String HSSP_TO_FASTA = "hssp_to_fasta";
+    public static final String CONSERVATION = "conservation";
+    public static final String SCORE_PARSE = "score_parse";
+    public static final String CHAIN_PICKING = "chain_picking";
+    public static final String CHAIN_MATCHING = "chain_matching";
+    public static final String PDB_PARSE = "pdb_parse";
+    public static final String HSSP_PIPELINE = "hssp_pipeline";
+
+    /** Upper bounds of the latency histogram buckets in seconds. */
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30,
+            60, 300};
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+        }
+    }
+
+    private static final String NO_CHAIN = "";
+
+    private static class Stage {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder sumNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        // Last one is +Inf
+        final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+
+        Stage() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+    }
+
+    private volatile boolean enabled =
+            Boolean.parseBoolean(System.getProperty("prank.metrics", "true"));
+    private final Map<String, Map<String, Stage>> stages = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return start time for {@link #record}, taken even when disabled, so that a stage
+     * running while the metrics are enabled is recorded with its real duration
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a successful run of the stage that started at the given time.
+     *
+     * @param chain Chain id, or null for stages that are not per chain
+     * @param bytes Number of bytes processed, or a negative number if unknown
+     */
+    public void record(String stage, String chain, long start, long bytes) {
+        record(stage, chain, start, bytes, true);
+    }
+
+    public void recordError(String stage, String chain, long start) {
+        record(stage, chain, start, -1, false);
+    }
+
+    private void record(String stage, String chain, long start, long bytes, boolean ok) {
+        if (!enabled) return;
+        long nanos = System.nanoTime() - start;
+        Stage s = stages.computeIfAbsent(stage, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(chain != null ? chain : NO_CHAIN, k -> new Stage());
+        s.count.increment();
+        if (!ok) s.errors.increment();
+        if (bytes > 0) s.bytes.add(bytes);
+        s.sumNanos.add(nanos);
+        s.maxNanos.accumulate(nanos);
+        int bucket = 0;
+        while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) bucket++;
+        s.buckets[bucket].increment();
+    }
+
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public void add(String counter, long delta) {
+        if (!enabled) return;
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+    }
+
+    public void reset() {
+        stages.clear();
+        counters.clear();
+    }
+
+    /**
+     * Wraps the stream so that the bytes read from it are recorded for the stage when it
+     * is closed.
+     */
+    public InputStream countBytes(InputStream in, String stage, String chain) {
+        if (!enabled) return in;
+        long start = System.nanoTime();
+        return new FilterInputStream(in) {
+            private long bytes = 0;
+            private boolean closed = false;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytes++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) bytes += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                bytes += skipped;
+                return skipped;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    record(stage, chain, start, bytes);
+                }
+                super.close();
+            }
+        };
+    }
+
+    public Snapshot snapshot() {
+        List<StageSnapshot> stageSnapshots = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Stage>> stage : new TreeMap<>(stages).entrySet()) {
+            for (Map.Entry<String, Stage> chain : new TreeMap<>(stage.getValue()).entrySet()) {
+                Stage s = chain.getValue();
+                long[] buckets = new long[s.buckets.length];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = s.buckets[i].sum();
+                }
+                stageSnapshots.add(new StageSnapshot(stage.getKey(),
+                        chain.getKey().isEmpty() ? null : chain.getKey(), s.count.sum(),
+                        s.errors.sum(), s.bytes.sum(), s.sumNanos.sum(), s.maxNanos.get(),
+                        buckets));
+            }
+        }
+        Map<String, Long> counterValues = new TreeMap<>();
+        counters.forEach((name, value) -> counterValues.put(name, value.sum()));
+        return new Snapshot(stageSnapshots, counterValues);
+    }
+
+    public static class StageSnapshot {
+        private final String stage;
+        private final String chain;
+        private final long count;
+        private final long errors;
+        private final long bytes;
+        private final long sumNanos;
+        private final long maxNanos;
+        private final long[] buckets;
+
+        private StageSnapshot(String stage, String chain, long count, long errors, long bytes,
+                              long sumNanos, long maxNanos, long[] buckets) {
+            this.stage = stage;
+            this.chain = chain;
+            this.count = count;
+            this.errors = errors;
+            this.bytes = bytes;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        /**
+         * @return chain id, null for the stages that are not per chain
+         */
+        public String getChain() {
+            return chain;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getSumSeconds() {
+            return sumNanos / 1e9;
+        }
+
+        public double getMaxSeconds() {
+            return maxNanos / 1e9;
+        }
+
+        /**
+         * @return number of runs in the histogram buckets, not cumulative, the last bucket
+         * has no upper bound (see {@link #getBucketBounds()})
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+    }
+
+    /**
+     * @return upper bounds of the histogram buckets in seconds
+     */
+    public static double[] getBucketBounds() {
+        return BUCKETS.clone();
+    }
+
+    public static class Snapshot {
+        private final List<StageSnapshot> stages;
+        private final Map<String, Long> counters;
+
+        private Snapshot(List<StageSnapshot> stages, Map<String, Long> counters) {
+            this.stages = Collections.unmodifiableList(stages);
+            this.counters = Collections.unmodifiableMap(counters);
+        }
+
+        public List<StageSnapshot> getStages() {
+            return stages;
+        }
+
+        public Map<String, Long> getCounters() {
+            return counters;
+        }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{\"counters\":{");
+            boolean first = true;
+            for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(jsonString(counter.getKey())).append(':').append(counter.getValue());
+            }
+            sb.append("},\"stages\":[");
+            for (int i = 0; i < stages.size(); i++) {
+                StageSnapshot s = stages.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"stage\":").append(jsonString(s.stage))
+                        .append(",\"chain\":").append(s.chain != null ? jsonString(s.chain)
+                                : "null")
+                        .append(",\"count\":").append(s.count)
+                        .append(",\"errors\":").append(s.errors)
+                        .append(",\"bytes\":").append(s.bytes)
+                        .append(",\"sumSeconds\":").append(number(s.getSumSeconds()))
+                        .append(",\"maxSeconds\":").append(number(s.getMaxSeconds()))
+                        .append(",\"buckets\":[");
+                for (int b = 0; b < s.buckets.length; b++) {
+                    if (b > 0) sb.append(',');
+                    sb.append("{\"le\":").append(b < BUCKETS.length
+                            ? number(BUCKETS[b]) : "\"+Inf\"")
+                            .append(",\"count\":").append(s.buckets[b]).append('}');
+                }
+                sb.append("]}");
+            }
+            return sb.append("]}").toString();
+        }
+
+        public String toPrometheus() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("# HELP prank_stage_seconds Duration of the processing stages.\n");
+            sb.append("# TYPE prank_stage_seconds histogram\n");
+            for (StageSnapshot s : stages) {
+                String labels = labels(s);
+                long cumulative = 0;
+                for (int b = 0; b < s.buckets.length; b++) {
+                    cumulative += s.buckets[b];
+                    sb.append("prank_stage_seconds_bucket{").append(labels).append(",le=\"")
+                            .append(b < BUCKETS.length ? number(BUCKETS[b]) : "+Inf")
+                            .append("\"} ").append(cumulative).append('\n');
+                }
+                sb.append("prank_stage_seconds_sum{").append(labels).append("} ")
+                        .append(number(s.getSumSeconds())).append('\n');
+                sb.append("prank_stage_seconds_count{").append(labels).append("} ")
+                        .append(s.count).append('\n');
+            }
+            sb.append("# HELP prank_stage_errors_total Failed runs of the processing stages.\n");
+            sb.append("# TYPE prank_stage_errors_total counter\n");
+            for (StageSnapshot s : stages) {
+                sb.append("prank_stage_errors_total{").append(labels(s)).append("} ")
+                        .append(s.errors).append('\n');
+            }
+            sb.append("# HELP prank_stage_bytes_total Bytes processed by the stages.\n");
+            sb.append("# TYPE prank_stage_bytes_total counter\n");
+            for (StageSnapshot s : stages) {
+                sb.append("prank_stage_bytes_total{").append(labels(s)).append("} ")
+                        .append(s.bytes).append('\n');
+            }
+            for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                String name = "prank_" + counter.getKey().replaceAll("[^a-zA-Z0-9_]", "_")
+                        + "_total";
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                sb.append(name).append(' ').append(counter.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private static String labels(StageSnapshot s) {
+            return "stage=\"" + escapeLabel(s.stage) + "\",chain=\""
+                    + (s.chain != null ? escapeLabel(s.chain) : "") + "\"";
+        }
+
+        private static String escapeLabel(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        private static String jsonString(String value) {
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.append('"').toString();
+        }
+
+        private static String number(double value) {
+            return Double.toString(value);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package cz.siret.prank.lib.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decompresses a bzip2 file by decoding its blocks in parallel.
+ *
+ * Bzip2 blocks are independent and start with a 48-bit magic number at an arbitrary bit
+ * offset. The file is memory-mapped and scanned for block boundaries, then every block is
+ * repackaged as a standalone single-block bzip2 stream and decoded on the executor. Decoded
+ * blocks are returned in order, with a bounded number of blocks in flight.
+ *
+ * The output is the same as of {@link BZip2CompressorInputStream} with the same
+ * decompressConcatenated flag. Should a block fail to decode (the magic number can, with
+ * negligible probability, appear inside compressed data), the rest of the file is decoded
+ * sequentially. Small files, files with a single block and single-threaded setups are
+ * decoded sequentially right away.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelBZip2InputStream.class);
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = (1L << 48) - 1;
+    /** Files smaller than this are decoded sequentially, they have few blocks anyway. */
+    private static final long MIN_PARALLEL_SIZE = 1 << 20;
+
+    private final File file;
+    private final boolean decompressConcatenated;
+    private final Executor executor;
+    private final int maxInFlight;
+
+    private ByteBuffer data;
+    private List<long[]> blocks;
+    private int nextBlock = 0;
+    private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] current = new byte[0];
+    private int currentPos = 0;
+    private long emitted = 0;
+    private InputStream fallback;
+
+    public ParallelBZip2InputStream(File file) throws IOException {
+        this(file, false, ForkJoinPool.commonPool(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param file                   Compressed file
+     * @param decompressConcatenated Decode all concatenated streams, not only the first one
+     * @param executor               Executor decoding the blocks
+     * @param parallelism            Number of blocks decoded at once
+     */
+    public ParallelBZip2InputStream(File file, boolean decompressConcatenated,
+                                    Executor executor, int parallelism) throws IOException {
+        this.file = file;
+        this.decompressConcatenated = decompressConcatenated;
+        this.executor = executor;
+        this.maxInFlight = Math.max(2, parallelism * 2);
+        if (parallelism < 2 || file.length() < MIN_PARALLEL_SIZE
+                || file.length() > Integer.MAX_VALUE) {
+            fallback = sequentialStream(0);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        blocks = findBlocks(data, decompressConcatenated);
+        if (blocks.size() < 2) {
+            data = null;
+            fallback = sequentialStream(0);
+            return;
+        }
+        fill();
+    }
+
+    /**
+     * Scans the data for block boundaries.
+     *
+     * @return list of (start bit of the block magic, end bit of the block, block size of
+     * the stream in units of 100 kB, 1..9) triples
+     */
+    static List<long[]> findBlocks(ByteBuffer data, boolean decompressConcatenated) {
+        List<long[]> result = new ArrayList<>();
+        long window = 0;
+        long blockStart = -1;
+        long blockSize = 9;
+        int limit = data.limit();
+        for (int i = 0; i < limit; i++) {
+            int b = data.get(i);
+            for (int bit = 7; bit >= 0; bit--) {
+                window = ((window << 1) | ((b >>> bit) & 1)) & MAGIC_MASK;
+                long magicStart = (long) i * 8 + (7 - bit) - 47;
+                if (window == BLOCK_MAGIC) {
+                    if (blockStart >= 0) {
+                        result.add(new long[]{blockStart, magicStart, blockSize});
+                    } else {
+                        // The first block of a stream directly follows the byte aligned
+                        // "BZh1".."BZh9" header.
+                        blockSize = magicStart % 8 == 0 && magicStart >= 32
+                                ? data.get((int) (magicStart / 8) - 1) - '0' : 9;
+                        if (blockSize < 1 || blockSize > 9) blockSize = 9;
+                    }
+                    blockStart = magicStart;
+                } else if (window == EOS_MAGIC) {
+                    if (blockStart >= 0) {
+                        result.add(new long[]{blockStart, magicStart, blockSize});
+                    }
+                    blockStart = -1;
+                    if (!decompressConcatenated) return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private void fill() {
+        while (pending.size() < maxInFlight && nextBlock < blocks.size()) {
+            long[] block = blocks.get(nextBlock++);
+            pending.add(CompletableFuture.supplyAsync(() -> decodeBlock(block), executor));
+        }
+    }
+
+    private byte[] decodeBlock(long[] block) {
+        try {
+            byte[] stream = toStandaloneStream(data, block[0], block[1], (int) block[2]);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) block[2] * 100000);
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = new BZip2CompressorInputStream(
+                    new ByteArrayInputStream(stream))) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wraps the block into a stream header (blockSize is 1..9), an end of stream marker and the stream CRC
+     * (which for a single block is the block CRC).
+     */
+    static byte[] toStandaloneStream(ByteBuffer data, long startBit, long endBit,
+                                     int blockSize) {
+        BitWriter writer = new BitWriter((int) ((endBit - startBit) / 8) + 16);
+        writer.write('B', 8);
+        writer.write('Z', 8);
+        writer.write('h', 8);
+        writer.write('0' + blockSize, 8);
+        long pos = startBit;
+        while (endBit - pos >= 8) {
+            writer.write(readBits(data, pos, 8), 8);
+            pos += 8;
+        }
+        if (endBit > pos) {
+            int n = (int) (endBit - pos);
+            writer.write(readBits(data, pos, n), n);
+        }
+        // The block CRC follows the 48-bit block magic.
+        int crc = readBits(data, startBit + 48, 32);
+        writer.write((int) (EOS_MAGIC >>> 24), 24);
+        writer.write((int) (EOS_MAGIC & 0xFFFFFF), 24);
+        writer.write(crc, 32);
+        return writer.toByteArray();
+    }
+
+    private static int readBits(ByteBuffer data, long bitPos, int n) {
+        int result = 0;
+        for (int i = 0; i < n; ) {
+            long p = bitPos + i;
+            int byteIndex = (int) (p >>> 3);
+            int bitOffset = (int) (p & 7);
+            int available = Math.min(8 - bitOffset, n - i);
+            int b = data.get(byteIndex) & 0xFF;
+            int bits = (b >>> (8 - bitOffset - available)) & ((1 << available) - 1);
+            result = (result << available) | bits;
+            i += available;
+        }
+        return result;
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream out;
+        private long buffer = 0;
+        private int bits = 0;
+
+        BitWriter(int size) {
+            out = new ByteArrayOutputStream(size);
+        }
+
+        void write(int value, int n) {
+            buffer = (buffer << n) | (value & ((1L << n) - 1));
+            bits += n;
+            while (bits >= 8) {
+                out.write((int) (buffer >>> (bits - 8)));
+                bits -= 8;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (bits > 0) {
+                out.write((int) (buffer << (8 - bits)));
+                bits = 0;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private InputStream sequentialStream(long skip) throws IOException {
+        InputStream in = new BZip2CompressorInputStream(ChannelInputStream.open(file),
+                decompressConcatenated);
+        long skipped = 0;
+        while (skipped < skip) {
+            long n = in.skip(skip - skipped);
+            if (n <= 0) throw new IOException("Unexpected end of bzip2 stream " + file);
+            skipped += n;
+        }
+        return in;
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (currentPos >= current.length) {
+            if (pending.isEmpty()) return false;
+            CompletableFuture<byte[]> future = pending.poll();
+            try {
+                current = future.get();
+                currentPos = 0;
+            } catch (ExecutionException e) {
+                logger.warn("Parallel decoding of {} failed, falling back to sequential: {}",
+                        file.getAbsolutePath(), e.getCause().toString());
+                cancelPending();
+                fallback = sequentialStream(emitted);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decompressing " + file, e);
+            }
+            fill();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (fallback != null) return fallback.read(b, off, len);
+        if (!nextChunk()) {
+            return fallback != null ? fallback.read(b, off, len) : -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        emitted += n;
+        return n;
+    }
+
+    private void cancelPending() {
+        for (CompletableFuture<byte[]> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        nextBlock = blocks != null ? blocks.size() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cancelPending();
+        data = null;
+        if (fallback != null) {
+            fallback.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package cz.siret.prank.lib.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream compressing blocks of the input in parallel (the same scheme as pigz).
+ *
+ * The input is cut into blocks that are deflated independently on the executor, each block
+ * is primed with the last 32 KB of the previous block as the dictionary and ends with a
+ * sync flush, the last one is finished. The compressed blocks are written in order and form
+ * a single deflate stream, so the output is one ordinary gzip member readable by any gzip
+ * reader. The CRC32 of the whole input is computed on the writing thread.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0,
+            0, (byte) 0xff};
+
+    private final OutputStream out;
+    private final int level;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long size = 0;
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private byte[] dictionary = null;
+    private boolean closed = false;
+
+    public ParallelGZIPOutputStream(OutputStream out) throws IOException {
+        this(out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelGZIPOutputStream(OutputStream out, int level) throws IOException {
+        this(out, level, ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param out         Underlying stream, closed by {@link #close()}
+     * @param level       Deflate compression level (0-9 or -1 for the default)
+     * @param executor    Executor compressing the blocks
+     * @param parallelism Number of blocks compressed at once
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int level, Executor executor,
+                                    int parallelism) throws IOException {
+        this.out = out;
+        this.level = level;
+        this.executor = executor;
+        this.maxInFlight = Math.max(2, parallelism * 2);
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        crc.update(b, off, len);
+        size += len;
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        byte[] input = blockLength == block.length ? block : Arrays.copyOf(block, blockLength);
+        byte[] dict = dictionary;
+        // Only the last block can be shorter than the dictionary, nothing follows it.
+        if (!last) {
+            dictionary = Arrays.copyOfRange(input, blockLength - DICTIONARY_SIZE, blockLength);
+        }
+        pending.add(CompletableFuture.supplyAsync(() -> deflate(input, dict, last), executor));
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+        while (pending.size() >= maxInFlight) {
+            writeNext();
+        }
+    }
+
+    private byte[] deflate(byte[] input, byte[] dict, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(input);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(input.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    result.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        }
+    }
+
+    /**
+     * Finishes the gzip stream without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (closed) return;
+        closed = true;
+        submitBlock(true);
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        byte[] trailer = new byte[8];
+        writeIntLE(trailer, 0, (int) crc.getValue());
+        writeIntLE(trailer, 4, (int) size);
+        out.write(trailer);
+    }
+
+    private static void writeIntLE(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package cz.siret.prank.lib.utils;
+
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.GroupType;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.io.mmcif.ChemCompGroupFactory;
+import org.biojava.nbio.structure.io.mmcif.chem.PolymerType;
+import org.biojava.nbio.structure.io.mmcif.model.ChemComp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streaming scanner of the ATOM/HETATM records of a PDB file for operations that only need
+ * residue names per chain (FASTA export, protein size, validation).
+ *
+ * No atoms or groups are built, the scanner only tracks residue boundaries the same way as
+ * BioJava's PDBFileParser (first model only, a new residue starts whenever the chain or the
+ * residue number changes, chains that reappear are continued) and classifies each residue
+ * name once per JVM through the same chemical component dictionary. So the sequences and
+ * counts agree with Chain.getAtomSequence() and getAtomGroups(GroupType.AMINOACID).
+ */
+public class PdbScanner {
+
+    private static final class ResidueType {
+        private final boolean aminoAcid;
+        /** One letter code in the atom sequence, null if the residue is not part of it. */
+        private final String letter;
+
+        private ResidueType(boolean aminoAcid, String letter) {
+            this.aminoAcid = aminoAcid;
+            this.letter = letter;
+        }
+    }
+
+    private static final Map<String, ResidueType> residueTypes = new ConcurrentHashMap<>();
+
+    /**
+     * Residues of one chain of the first model.
+     */
+    public static class ChainInfo {
+        private final String chainId;
+        private final StringBuilder sequence = new StringBuilder();
+        private int residueCount;
+        private int aminoAcidCount;
+
+        private ChainInfo(String chainId) {
+            this.chainId = chainId;
+        }
+
+        public String getChainId() {
+            return chainId;
+        }
+
+        /**
+         * @return the same sequence as Chain.getAtomSequence()
+         */
+        public String getSequence() {
+            return sequence.toString();
+        }
+
+        public int getResidueCount() {
+            return residueCount;
+        }
+
+        public int getAminoAcidCount() {
+            return aminoAcidCount;
+        }
+    }
+
+    public static class Result {
+        private final String idCode;
+        private final List<ChainInfo> chains;
+
+        private Result(String idCode, List<ChainInfo> chains) {
+            this.idCode = idCode;
+            this.chains = chains;
+        }
+
+        /**
+         * @return id code from the HEADER record, null if there is none
+         */
+        public String getIdCode() {
+            return idCode;
+        }
+
+        /**
+         * @return chains in the order of their first appearance
+         */
+        public List<ChainInfo> getChains() {
+            return chains;
+        }
+
+        public int getProteinSize() {
+            int result = 0;
+            for (ChainInfo chain : chains) {
+                result += chain.aminoAcidCount;
+            }
+            return result;
+        }
+
+        public boolean hasAminoAcidChain() {
+            for (ChainInfo chain : chains) {
+                if (chain.aminoAcidCount > 0) return true;
+            }
+            return false;
+        }
+    }
+
+    public static Result scan(File pdbFile) throws IOException {
+        try (InputStream in = Utils.INSTANCE.readFile(pdbFile)) {
+            return scan(in);
+        }
+    }
+
+    public static Result scan(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(inputStream, StandardCharsets.ISO_8859_1), 1 << 16);
+        String idCode = null;
+        Map<String, ChainInfo> chains = new LinkedHashMap<>();
+        ChainInfo chain = null;
+        String residueNumber = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("ATOM  ") || line.startsWith("HETATM")) {
+                String chainId = column(line, 21, 22);
+                String number = column(line, 22, 26).trim();
+                boolean newResidue = chain == null || !chain.chainId.equals(chainId)
+                        || !isNumber(number) || !number.concat(column(line, 26, 27))
+                        .equals(residueNumber);
+                if (chain == null || !chain.chainId.equals(chainId)) {
+                    chain = chains.computeIfAbsent(chainId, ChainInfo::new);
+                }
+                if (newResidue) {
+                    residueNumber = number.concat(column(line, 26, 27));
+                    ResidueType type = residueType(column(line, 17, 20).trim());
+                    chain.residueCount++;
+                    if (type.aminoAcid) chain.aminoAcidCount++;
+                    if (type.letter != null) chain.sequence.append(type.letter);
+                }
+            } else if (line.startsWith("HEADER")) {
+                // Same columns as PDBFileParser
+                int length = line.trim().length();
+                if (length > 62) {
+                    idCode = line.substring(62, Math.min(length, 66)).trim();
+                }
+            } else if (line.startsWith("ENDMDL")) {
+                break;
+            }
+        }
+        return new Result(idCode, new ArrayList<>(chains.values()));
+    }
+
+    private static String column(String line, int start, int end) {
+        if (line.length() >= end) return line.substring(start, end);
+        StringBuilder result = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            result.append(i < line.length() ? line.charAt(i) : ' ');
+        }
+        return result.toString();
+    }
+
+    private static boolean isNumber(String number) {
+        try {
+            Integer.parseInt(number);
+            return true;
+        } catch (NumberFormatException e) {
+            // PDBFileParser numbers such residues by a counter, so they never match.
+            return false;
+        }
+    }
+
+    /**
+     * Classifies the residue the way PDBFileParser and Chain.getAtomSequence() do.
+     */
+    private static ResidueType residueType(String name) {
+        ResidueType type = residueTypes.get(name);
+        if (type == null) {
+            boolean aminoAcid;
+            Group group = ChemCompGroupFactory.getGroupFromChemCompDictionary(name);
+            if (group != null && !group.getChemComp().isEmpty()) {
+                aminoAcid = group.getType() == GroupType.AMINOACID;
+            } else {
+                Character code = StructureTools.get1LetterCode(name);
+                aminoAcid = code != null && code != 'X' && !StructureTools.isNucleotide(name);
+            }
+            ChemComp cc = ChemCompGroupFactory.getChemComp(name);
+            String letter = null;
+            if (PolymerType.PROTEIN_ONLY.contains(cc.getPolymerType())
+                    || PolymerType.POLYNUCLEOTIDE_ONLY.contains(cc.getPolymerType())) {
+                letter = ChemCompGroupFactory.getOneLetterCode(cc);
+                if (letter == null) letter = "X";
+            }
+            type = new ResidueType(aminoAcid, letter);
+            residueTypes.put(name, type);
+        }
+        return type;
+    }
+
+    // static utility class
+    private PdbScanner() {}
+}
@@ -0,0 +1,168 @@
+package cz.siret.prank.lib.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Gzip reader using a pooled input buffer and the inflater cached by the current thread
+ * (see {@link BufferPool}) instead of allocating both for every file.
+ *
+ * Reads the same data as {@link java.util.zip.GZIPInputStream}: concatenated members are
+ * decoded one after another and the CRC32 and size of every member are checked.
+ */
+public class PooledGZIPInputStream extends InputStream {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int bufferPos = 0;
+    private int bufferEnd = 0;
+    private Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private boolean eof = false;
+
+    public PooledGZIPInputStream(InputStream in) throws IOException {
+        this.in = in;
+        this.buffer = BufferPool.acquireArray();
+        this.inflater = BufferPool.acquireInflater();
+        try {
+            readHeader();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (bufferPos < bufferEnd) return true;
+        bufferPos = 0;
+        bufferEnd = Math.max(0, in.read(buffer, 0, buffer.length));
+        return bufferEnd > 0;
+    }
+
+    private int readByte() throws IOException {
+        if (!fill()) throw new EOFException("Unexpected end of gzip stream");
+        return buffer[bufferPos++] & 0xFF;
+    }
+
+    private int readShortLE() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    private long readIntLE() throws IOException {
+        return ((long) readShortLE() | ((long) readShortLE() << 16)) & 0xFFFFFFFFL;
+    }
+
+    private void readHeader() throws IOException {
+        if (readShortLE() != 0x8b1f) throw new ZipException("Not in GZIP format");
+        if (readByte() != 8) throw new ZipException("Unsupported compression method");
+        int flags = readByte();
+        for (int i = 0; i < 6; i++) readByte(); // MTIME, XFL, OS
+        if ((flags & FEXTRA) != 0) {
+            int length = readShortLE();
+            for (int i = 0; i < length; i++) readByte();
+        }
+        if ((flags & FNAME) != 0) {
+            while (readByte() != 0) ;
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (readByte() != 0) ;
+        }
+        if ((flags & FHCRC) != 0) {
+            readShortLE();
+        }
+        inflater.reset();
+        crc.reset();
+    }
+
+    /**
+     * Checks the trailer of the member and starts the next one if there is any.
+     *
+     * @return false if there are no more members
+     */
+    private boolean nextMember() throws IOException {
+        // Return the input the inflater did not consume.
+        bufferPos = bufferEnd - inflater.getRemaining();
+        if (readIntLE() != crc.getValue()) throw new ZipException("Corrupt GZIP trailer");
+        if (readIntLE() != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+        // Same as GZIPInputStream, data after the trailer that is not another member is
+        // ignored.
+        if (!fill() || bufferEnd - bufferPos < 2 && !fillMore()) return false;
+        if ((buffer[bufferPos] & 0xFF) != 0x1f || (buffer[bufferPos + 1] & 0xFF) != 0x8b) {
+            return false;
+        }
+        readHeader();
+        return true;
+    }
+
+    /**
+     * Moves the unread byte to the start of the buffer and reads more after it.
+     */
+    private boolean fillMore() throws IOException {
+        int rest = bufferEnd - bufferPos;
+        System.arraycopy(buffer, bufferPos, buffer, 0, rest);
+        bufferPos = 0;
+        bufferEnd = rest;
+        int n = in.read(buffer, rest, buffer.length - rest);
+        if (n > 0) bufferEnd += n;
+        return bufferEnd >= 2;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (inflater == null) throw new IOException("Stream closed");
+        if (len == 0) return 0;
+        while (!eof) {
+            try {
+                int n = inflater.inflate(b, off, len);
+                if (n > 0) {
+                    crc.update(b, off, n);
+                    return n;
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage() != null ? e.getMessage()
+                        : "Invalid ZLIB data format");
+            }
+            if (inflater.finished()) {
+                if (!nextMember()) eof = true;
+            } else if (inflater.needsDictionary()) {
+                throw new ZipException("Unexpected preset dictionary in gzip stream");
+            } else if (inflater.needsInput()) {
+                if (!fill()) throw new EOFException("Unexpected end of ZLIB input stream");
+                inflater.setInput(buffer, bufferPos, bufferEnd - bufferPos);
+                bufferPos = bufferEnd;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) {
+            BufferPool.release(inflater);
+            inflater = null;
+        }
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,46 @@
+package cz.siret.prank.lib.utils;
+
+import org.biojava.nbio.structure.Group;
+
+import java.util.List;
+
+/**
+ * Byte-per-residue encoding of one letter codes used by the sequence matching algorithms.
+ *
+ * Single letter ASCII codes are stored upper-cased, anything else is replaced by a
+ * placeholder. PDB chains and score files use different placeholders, so such residues
+ * never match each other, which is how the original String comparison behaved.
+ */
+public final class ResidueEncoding {
+    /** Placeholder for residues of PDB chains without a single letter code. */
+    public static final byte UNKNOWN_PDB_RESIDUE = 1;
+    /** Placeholder for residues of score files without a single letter code. */
+    public static final byte UNKNOWN_SCORE_RESIDUE = 2;
+
+    public static byte encode(String oneLetterCode, byte placeholder) {
+        if (oneLetterCode == null || oneLetterCode.length() != 1) return placeholder;
+        char c = Character.toUpperCase(oneLetterCode.charAt(0));
+        return c < 128 ? (byte) c : placeholder;
+    }
+
+    /**
+     * Encodes one byte of an ASCII (or UTF-8) text, bytes outside of ASCII get the
+     * placeholder.
+     */
+    public static byte encode(byte asciiCode, byte placeholder) {
+        if (asciiCode < 0) return placeholder;
+        return asciiCode >= 'a' && asciiCode <= 'z' ? (byte) (asciiCode - 'a' + 'A') : asciiCode;
+    }
+
+    public static byte[] encodeGroups(List<Group> chain) {
+        byte[] result = new byte[chain.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = encode(chain.get(i).getChemComp().getOne_letter_code(),
+                    UNKNOWN_PDB_RESIDUE);
+        }
+        return result;
+    }
+
+    // static utility class
+    private ResidueEncoding() {}
+}
@@ -0,0 +1,57 @@
+package cz.siret.prank.lib.utils;
+
+import java.util.Locale;
+
+/**
+ * Streaming count, mean, variance (Welford's algorithm), minimum and maximum of a series of
+ * values, in constant memory. NaN values are skipped.
+ */
+public class RunningStats {
+    private long count = 0;
+    private double mean = 0;
+    private double m2 = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public void add(double value) {
+        if (Double.isNaN(value)) return;
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean of the values, NaN if there are none
+     */
+    public double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * @return sample standard deviation, NaN for less than two values
+     */
+    public double getStdDev() {
+        return count > 1 ? Math.sqrt(m2 / (count - 1)) : Double.NaN;
+    }
+
+    public double getMin() {
+        return count > 0 ? min : Double.NaN;
+    }
+
+    public double getMax() {
+        return count > 0 ? max : Double.NaN;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "n=%d mean=%.4f sd=%.4f min=%.4f max=%.4f", count,
+                getMean(), getStdDev(), getMin(), getMax());
+    }
+}
@@ -0,0 +1,161 @@
+package cz.siret.prank.lib.utils;
+
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureTools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of parsed structures used by {@link BioUtils#loadPdbFile(File)}, so that
+ * a PDB file used by several entry points is parsed only once.
+ *
+ * Entries are keyed by absolute path, size and modification time. The memory used by the
+ * entries is estimated from their atom count and kept under a budget (system property
+ * prank.structureCache.maxBytes, 256 MB by default); structures are held by soft
+ * references, so the garbage collector can drop them under memory pressure before the
+ * budget is reached. Cached structures are shared and must not be modified.
+ */
+public enum StructureCache {
+    INSTANCE;
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Rough size of one parsed atom including its share of the group and chain. */
+    private static final long BYTES_PER_ATOM = 400;
+
+    @FunctionalInterface
+    interface Loader {
+        Structure load(File file) throws IOException;
+    }
+
+    private static final class Key {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+
+        private Key(File file) {
+            this.path = file.getAbsolutePath();
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return size == key.size && lastModified == key.lastModified
+                    && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + Long.hashCode(size);
+            result = 31 * result + Long.hashCode(lastModified);
+            return result;
+        }
+    }
+
+    private static final class Entry {
+        private final SoftReference<Structure> structure;
+        private final long bytes;
+
+        private Entry(Structure structure, long bytes) {
+            this.structure = new SoftReference<>(structure);
+            this.bytes = bytes;
+        }
+    }
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes = Long.getLong("prank.structureCache.maxBytes", 256L << 20);
+    private long usedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @return cached structure, loaded by the loader on a cache miss
+     */
+    Structure get(File file, Loader loader) throws IOException {
+        Key key = new Key(file);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                Structure cached = entry.structure.get();
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    logger.debug("Structure cache hit [{}]", key.path);
+                    return cached;
+                }
+                // Collected by the garbage collector
+                remove(key, entry);
+            }
+        }
+        misses.incrementAndGet();
+        Structure structure = loader.load(file);
+        long bytes = StructureTools.getNrAtoms(structure) * BYTES_PER_ATOM;
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(structure, bytes));
+            if (previous != null) {
+                usedBytes -= previous.bytes;
+            }
+            usedBytes += bytes;
+            evict();
+        }
+        return structure;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        usedBytes -= entry.bytes;
+        evictions.incrementAndGet();
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (usedBytes > maxBytes || entry.structure.get() == null) {
+                usedBytes -= entry.bytes;
+                evictions.incrementAndGet();
+                it.remove();
+            }
+        }
+    }
+}
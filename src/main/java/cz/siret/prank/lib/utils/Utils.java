@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.Color;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -12,6 +13,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.file.CopyOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -19,12 +23,11 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.function.Function;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -35,21 +38,58 @@ public enum Utils {
 
     private final transient Logger logger = LoggerFactory.getLogger(getClass());
 
+    private int gzipLevel = Integer.getInteger("prank.gzip.level", Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * Copies the rest of the input to the output. Files are copied channel to channel,
+     * everything else through a pooled buffer (see {@link BufferPool}).
+     */
     public void copyStream(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
-        int len = in.read(buffer);
-        while (len != -1) {
-            out.write(buffer, 0, len);
-            len = in.read(buffer);
+        if (out instanceof FileOutputStream) {
+            if (in instanceof ChannelInputStream) {
+                ((ChannelInputStream) in).transferTo(((FileOutputStream) out).getChannel());
+                return;
+            }
+            if (in.getClass() == FileInputStream.class) {
+                FileChannel source = ((FileInputStream) in).getChannel();
+                FileChannel target = ((FileOutputStream) out).getChannel();
+                long position = source.position();
+                long size = source.size();
+                while (position < size) {
+                    long n = source.transferTo(position, size - position, target);
+                    if (n <= 0) break;
+                    position += n;
+                }
+                source.position(position);
+                return;
+            }
+        }
+        byte[] buffer = BufferPool.acquireArray();
+        try {
+            int len = in.read(buffer);
+            while (len != -1) {
+                out.write(buffer, 0, len);
+                len = in.read(buffer);
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
     }
 
+    /**
+     * Opens the file through its channel, decompressing .gz files (see
+     * {@link PooledGZIPInputStream}) and .bz2 files (block-parallel, see
+     * {@link ParallelBZip2InputStream}).
+     */
     public InputStream readFile(File file) throws IOException {
-        logger.info("Reading file [{}]", file.getAbsolutePath());
+        logger.debug("Reading file [{}]", file.getAbsolutePath());
+        Metrics.INSTANCE.increment("files_read");
         if (file.getName().endsWith(".gz")) {
-            return new GZIPInputStream(new FileInputStream(file));
+            return new PooledGZIPInputStream(ChannelInputStream.open(file));
+        } else if (file.getName().endsWith(".bz2")) {
+            return new ParallelBZip2InputStream(file);
         } else {
-            return new FileInputStream(file);
+            return ChannelInputStream.open(file);
         }
     }
 
@@ -73,15 +113,64 @@ public enum Utils {
             IOException {
         Path sourceFile = Paths.get(file.getAbsolutePath());
         Path destFile = destDir.resolve(file.getName());
-        Files.copy(sourceFile, destFile , copyOptions);
+        boolean replace = false;
+        for (CopyOption option : copyOptions) {
+            if (option != StandardCopyOption.REPLACE_EXISTING) {
+                // Attributes, atomic moves etc. are left to Files.copy
+                Files.copy(sourceFile, destFile, copyOptions);
+                return destFile;
+            }
+            replace = true;
+        }
+        if (Files.exists(destFile) && Files.isSameFile(sourceFile, destFile)) {
+            // Opening the target would truncate the source.
+            return destFile;
+        }
+        try (FileChannel source = FileChannel.open(sourceFile, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(destFile, StandardOpenOption.WRITE,
+                     replace ? StandardOpenOption.CREATE : StandardOpenOption.CREATE_NEW,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long size = source.size();
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    // No progress (e.g. the source shrank), copy the rest until its end.
+                    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    while (source.read(buffer, position) > 0) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            position += target.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                    break;
+                }
+                position += transferred;
+            }
+        }
         return destFile;
     }
 
+    /**
+     * Compression level of the gzip files written by this class (system property
+     * prank.gzip.level, default level of Deflater by default).
+     */
+    public int getGzipLevel() {
+        return gzipLevel;
+    }
+
+    public void setGzipLevel(int gzipLevel) {
+        this.gzipLevel = gzipLevel;
+    }
+
     public void gzipFile(File file) throws IOException {
         Path sourceFile = Paths.get(file.getAbsolutePath());
         Path destFile = sourceFile.getParent().resolve(file.getName().concat(".gz"));
-        try(OutputStream out = new GZIPOutputStream(new FileOutputStream(destFile.toFile()))) {
-            Files.copy(sourceFile, out);
+        try(InputStream in = ChannelInputStream.open(file);
+            OutputStream out = new ParallelGZIPOutputStream(
+                new FileOutputStream(destFile.toFile()), gzipLevel)) {
+            copyStream(in, out);
         }
     }
 
@@ -112,15 +201,24 @@ public enum Utils {
         return (chainId) -> map.getOrDefault(chainId, null);
     }
 
-    // http://stackoverflow.com/questions/309424/read-convert-an-inputstream-to-a-string
-    // The stream is not closed.
+    // Reads the whole stream in the platform charset, the stream is closed only if requested.
     public String convertStreamToString(InputStream is, boolean close) {
-        Scanner s = new Scanner(is).useDelimiter("\\A");
-        String res = s.hasNext() ? s.next() : "";
-        if (close) {
-            s.close();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            copyStream(is, out);
+        } catch (IOException e) {
+            // Scanner used to swallow read errors and return what it had read
+            logger.warn("Failed to read stream: {}", e.toString());
+        } finally {
+            if (close) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close stream: {}", e.toString());
+                }
+            }
         }
-        return res;
+        return new String(out.toByteArray(), Charset.defaultCharset());
     }
 
     public void stringToFile(String content, File destination, boolean append, boolean newline)
@@ -136,7 +234,8 @@ public enum Utils {
 
     public void stringToGZipFile(String content, File destination)
             throws IOException {
-        try (OutputStream stream = new GZIPOutputStream(new FileOutputStream(destination))) {
+        try (OutputStream stream = new ParallelGZIPOutputStream(
+                new FileOutputStream(destination), gzipLevel)) {
             try (PrintWriter writer = new PrintWriter(stream)) {
                 writer.print(content);
             }
@@ -0,0 +1,63 @@
+package cz.siret.prank.lib;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link JsdConservation} to the reference .hom files in
+ * src/test/resources/conservation. The references come from a line-by-line transcription of
+ * the js_divergence path of score_conservation.py, they should be replaced by the output of
+ * the script itself with the settings of the conservation script:
+ * python score_conservation.py -s js_divergence -w 3 -b 0.5 -g 0.3 -o msa.hom msa.fasta
+ */
+public class JsdConservationTest {
+    /** The script prints 5 decimal places. */
+    private static final double TOLERANCE = 1e-4;
+
+    @Test
+    public void conservedAlignment() throws Exception {
+        assertMatchesScript("conserved");
+    }
+
+    @Test
+    public void alignmentWithGapsAndAmbiguousResidues() throws Exception {
+        assertMatchesScript("gapped");
+    }
+
+    @Test
+    public void diverseAlignment() throws Exception {
+        assertMatchesScript("diverse");
+    }
+
+    private void assertMatchesScript(String name) throws IOException, URISyntaxException {
+        double[] expected = readHomScores(resource(name + ".hom"));
+        JsdConservation.Scores scores = JsdConservation.compute(resource(name + ".fasta"));
+        double[] actual = scores.getScores();
+        assertEquals(name + ": number of columns", expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(name + ": column " + i, expected[i], actual[i], TOLERANCE);
+        }
+    }
+
+    private static double[] readHomScores(File file) throws IOException {
+        List<Double> scores = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            scores.add(Double.parseDouble(line.split("\t")[1]));
+        }
+        return scores.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    private File resource(String name) throws URISyntaxException {
+        return new File(getClass().getResource("/conservation/" + name).toURI());
+    }
+}
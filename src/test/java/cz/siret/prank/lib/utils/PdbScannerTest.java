@@ -0,0 +1,74 @@
+package cz.siret.prank.lib.utils;
+
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.GroupType;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.io.PDBFileReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link PdbScanner} and the file based methods of {@link BioUtils} built on it
+ * agree with BioJava's PDBFileReader on the PDB files in src/test/resources/pdb.
+ */
+public class PdbScannerTest {
+
+    @Test
+    public void alternateLocationsAndInsertionCodes() throws Exception {
+        assertMatchesBioJava("altlocs.pdb");
+    }
+
+    @Test
+    public void modifiedAminoAcidsAndLigands() throws Exception {
+        assertMatchesBioJava("modified.pdb");
+    }
+
+    @Test
+    public void onlyFirstModel() throws Exception {
+        assertMatchesBioJava("models.pdb");
+    }
+
+    @Test
+    public void nucleicAcidChains() throws Exception {
+        assertMatchesBioJava("nucleic.pdb");
+    }
+
+    @Test
+    public void blankAndReappearingChainIds() throws Exception {
+        assertMatchesBioJava("blankchain.pdb");
+    }
+
+    private void assertMatchesBioJava(String name) throws Exception {
+        File file = new File(getClass().getResource("/pdb/" + name).toURI());
+        Structure structure = new PDBFileReader().getStructure(file);
+        PdbScanner.Result scan = PdbScanner.scan(file);
+
+        Map<String, String> expectedSequences = new LinkedHashMap<>();
+        Map<String, Integer> expectedAminoAcids = new LinkedHashMap<>();
+        for (Chain chain : structure.getChains()) {
+            expectedSequences.put(chain.getChainID(), chain.getAtomSequence());
+            expectedAminoAcids.put(chain.getChainID(),
+                    chain.getAtomGroups(GroupType.AMINOACID).size());
+        }
+        Map<String, String> sequences = new LinkedHashMap<>();
+        Map<String, Integer> aminoAcids = new LinkedHashMap<>();
+        for (PdbScanner.ChainInfo chain : scan.getChains()) {
+            sequences.put(chain.getChainId(), chain.getSequence());
+            aminoAcids.put(chain.getChainId(), chain.getAminoAcidCount());
+        }
+        assertEquals(name + ": sequences", expectedSequences, sequences);
+        assertEquals(name + ": amino acids", expectedAminoAcids, aminoAcids);
+        assertEquals(name + ": id code", structure.getPDBHeader().getIdCode(), scan.getIdCode());
+
+        BioUtils bioUtils = BioUtils.INSTANCE;
+        assertEquals(name + ": protein size", bioUtils.getProteinSize(structure),
+                bioUtils.getProteinSize(file));
+        assertEquals(name + ": fasta", bioUtils.pdbToFasta(structure, null),
+                bioUtils.pdbToFasta(file));
+    }
+}